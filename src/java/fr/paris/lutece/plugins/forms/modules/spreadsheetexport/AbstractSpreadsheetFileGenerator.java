@@ -37,20 +37,33 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import fr.paris.lutece.plugins.forms.business.Form;
 import fr.paris.lutece.plugins.forms.business.FormHome;
 import fr.paris.lutece.plugins.forms.business.FormQuestionResponse;
 import fr.paris.lutece.plugins.forms.business.FormResponse;
-import fr.paris.lutece.plugins.forms.business.FormResponseHome;
 import fr.paris.lutece.plugins.forms.business.FormResponseStep;
 import fr.paris.lutece.plugins.forms.business.Step;
 import fr.paris.lutece.plugins.forms.business.StepHome;
@@ -58,14 +71,16 @@ import fr.paris.lutece.plugins.forms.business.form.FormResponseItem;
 import fr.paris.lutece.plugins.forms.business.form.FormResponseItemSortConfig;
 import fr.paris.lutece.plugins.forms.business.form.column.FormColumnCell;
 import fr.paris.lutece.plugins.forms.business.form.column.IFormColumn;
+import fr.paris.lutece.plugins.forms.business.form.column.impl.FormColumnEntry;
 import fr.paris.lutece.plugins.forms.business.form.filter.FormFilter;
 import fr.paris.lutece.plugins.forms.business.form.panel.FormPanel;
 import fr.paris.lutece.plugins.forms.export.AbstractFileGenerator;
-import fr.paris.lutece.plugins.forms.service.EntryServiceManager;
 import fr.paris.lutece.plugins.forms.service.MultiviewFormService;
+import fr.paris.lutece.plugins.forms.util.FormEntryNameConstants;
 import fr.paris.lutece.plugins.forms.util.FormMultiviewWorkflowStateNameConstants;
-import fr.paris.lutece.plugins.forms.web.entrytype.IEntryDataService;
 import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.util.file.FileUtil;
 
 /**
@@ -77,6 +92,31 @@ public abstract class AbstractSpreadsheetFileGenerator extends AbstractFileGener
     private static final String MESSAGE_EXPORT_FORM_STATE = "forms.export.formResponse.form.state";
     private static final String MESSAGE_EXPORT_FORM_DATE_CREATION = "forms.export.formResponse.form.date.creation";
     private static final String MESSAGE_EXPORT_FORM_DATE_UPDATE = "forms.export.formResponse.form.date.update";
+    private static final String MESSAGE_EXPORT_PREVIEW_TRUNCATED = "module.forms.spreadsheetexport.export.preview.truncated";
+
+    private static final String PROPERTY_EXPORT_CHECKPOINT_INTERVAL = "forms-spreadsheetexport.export.checkpoint.interval";
+    private static final String PROPERTY_EXPORT_CHECKPOINT_MAX_AGE = "forms-spreadsheetexport.export.checkpoint.maxAge";
+    private static final String PROPERTY_EXPORT_SHEET_PER_FORM = "forms-spreadsheetexport.export.sheetPerForm";
+    private static final String PROPERTY_EXPORT_SHEET_PER_FORM_THREADS = "forms-spreadsheetexport.export.sheetPerForm.threads";
+    private static final String PROPERTY_EXPORT_INDEX_SOURCE = "forms-spreadsheetexport.export.indexSource";
+    private static final String PROPERTY_EXPORT_PREVIEW_TIME_BUDGET = "forms-spreadsheetexport.export.preview.timeBudget";
+
+    private static final int SHEET_NAME_MAX_LENGTH = 31;
+
+    private final int _nCheckpointInterval = AppPropertiesService.getPropertyInt( PROPERTY_EXPORT_CHECKPOINT_INTERVAL, 0 );
+    private final long _lCheckpointMaxAge = AppPropertiesService.getPropertyLong( PROPERTY_EXPORT_CHECKPOINT_MAX_AGE, 48L );
+    private final boolean _bSheetPerForm = AppPropertiesService.getPropertyBoolean( PROPERTY_EXPORT_SHEET_PER_FORM, false );
+    private final int _nThreadCount = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_EXPORT_SHEET_PER_FORM_THREADS, 4 ) );
+    private final int _nPreviewMaxRows = ExportPreflight.getPreviewMaxRows( );
+    private final long _lPreviewTimeBudget = AppPropertiesService.getPropertyLong( PROPERTY_EXPORT_PREVIEW_TIME_BUDGET, 500L );
+    private final ExportEstimate _estimate;
+    private final boolean _bPreview;
+    private final FormResponseExportLoader _loader;
+    private final FormResponseExportDAO _dao = new FormResponseExportDAO( );
+    private final ResponseValueConverter _converter = new ResponseValueConverter( );
+    private final Map<Integer, Form> _mapFormById = new ConcurrentHashMap<>( );
+    private final SheetWriter _documentWriter = new DocumentWriter( );
+    private ExportCheckpoint _checkpoint;
 
     /**
      * Constructor
@@ -93,11 +133,53 @@ public abstract class AbstractSpreadsheetFileGenerator extends AbstractFileGener
      *            the sort configuration
      * @param fileDescription
      *            description of the file
+     * @param estimate
+     *            the preflight estimate of the export
+     * @param bPreview
+     *            {@code true} to export only the first responses, as a quick preview
      */
     protected AbstractSpreadsheetFileGenerator( String fileName, FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter,
-            FormResponseItemSortConfig sortConfig, String fileDescription )
+            FormResponseItemSortConfig sortConfig, String fileDescription, ExportEstimate estimate, boolean bPreview )
     {
         super( FileUtil.normalizeFileName( fileName ), formPanel, listFormColumn, listFormFilter, sortConfig, fileDescription );
+        _estimate = estimate;
+        _bPreview = bPreview;
+        _loader = AppPropertiesService.getPropertyBoolean( PROPERTY_EXPORT_INDEX_SOURCE, false )
+                ? new FormResponseExportLoader( getIndexedValueNames( listFormColumn ) )
+                : new FormResponseExportLoader( );
+    }
+
+    /**
+     * Get the names of the cell values holding the indexed values of the entries shown in the multiview columns
+     * 
+     * @param listFormColumn
+     *            the form columns list
+     * @return the names of the cell values, by entry code
+     */
+    private static Map<String, String> getIndexedValueNames( List<IFormColumn> listFormColumn )
+    {
+        Map<String, String> mapValueNameByEntryCode = new HashMap<>( );
+        for ( IFormColumn formColumn : listFormColumn )
+        {
+            if ( formColumn instanceof FormColumnEntry )
+            {
+                for ( String strEntryCode : ( (FormColumnEntry) formColumn ).getListEntryCode( ) )
+                {
+                    mapValueNameByEntryCode.put( strEntryCode, FormEntryNameConstants.COLUMN_ENTRY_VALUE_PATTERN + formColumn.getFormColumnPosition( ) );
+                }
+            }
+        }
+        return mapValueNameByEntryCode;
+    }
+
+    /**
+     * Get the preflight estimate of the export, including the selected execution strategy
+     * 
+     * @return the estimate
+     */
+    public ExportEstimate getExportEstimate( )
+    {
+        return _estimate;
     }
 
     @Override
@@ -186,6 +268,25 @@ public abstract class AbstractSpreadsheetFileGenerator extends AbstractFileGener
      */
     protected abstract void mergeCells( int colStartIndex, int rowStartIndex, int colEndIndex, int rowEndIndex );
 
+    /**
+     * Build a sheet name accepted by the file format from a title
+     * 
+     * @param strTitle
+     *            the title
+     * @return the sheet name
+     */
+    protected abstract String toSheetName( String strTitle );
+
+    /**
+     * Start a new sheet, which becomes the current sheet. The first sheet is the one created by {@link #prepareDocument()}.
+     * 
+     * @param nSheetIndex
+     *            the sheet index
+     * @param strName
+     *            the sheet name, accepted by the file format and unique in the document
+     */
+    protected abstract void addSheet( int nSheetIndex, String strName );
+
     /**
      * Export the form responses
      * 
@@ -196,46 +297,424 @@ public abstract class AbstractSpreadsheetFileGenerator extends AbstractFileGener
      */
     private void writeExportFile( Path file ) throws Exception
     {
+        long lStartTime = System.currentTimeMillis( );
         prepareDocument( );
-        List<FormResponseItem> searchAllListFormResponseItem = MultiviewFormService.getInstance( ).searchAllListFormResponseItem( _formPanel, _listFormColumn,
-                _listFormFilter, _sortConfig );
-        Map<Integer, String> mapWorkflowState = searchAllListFormResponseItem.stream( )
-                .collect( Collectors.toMap( FormResponseItem::getIdFormResponse, fri -> findWorkflowState( fri ) ) );
-        List<FormResponse> listFormResponse = searchAllListFormResponseItem.stream( )
-                .map( fri -> FormResponseHome.findByPrimaryKeyForIndex( fri.getIdFormResponse( ) ) ).collect( Collectors.toList( ) );
+        try
+        {
+            if ( _bPreview )
+            {
+                // Only the page of the previewed responses is searched, on a private panel as this runs outside of the request of the user
+                FormPanel page = ExportPreflight.searchPage( _formPanel, _listFormColumn, _listFormFilter, _sortConfig, _nPreviewMaxRows );
+                writePreview( page.getFormResponseItemList( ), page.getTotalFormResponseItemCount( ), lStartTime + _lPreviewTimeBudget );
+            }
+            else
+            {
+                List<FormResponseItem> searchAllListFormResponseItem = MultiviewFormService.getInstance( ).searchAllListFormResponseItem( _formPanel,
+                        _listFormColumn, _listFormFilter, _sortConfig );
+                if ( _bSheetPerForm )
+                {
+                    writeSheetPerForm( searchAllListFormResponseItem, findWorkflowStates( searchAllListFormResponseItem ) );
+                }
+                else
+                {
+                    writeSingleSheet( searchAllListFormResponseItem, findWorkflowStates( searchAllListFormResponseItem ) );
+                }
+            }
+            saveDocument( file );
+            AppLogService.debug( "Spreadsheet export value cache : " + _converter.getHitCount( ) + " hits, " + _converter.getMissCount( )
+                    + " misses, hit rate " + _converter.getHitRate( ) );
+            if ( _checkpoint != null )
+            {
+                _checkpoint.delete( );
+            }
+        }
+        finally
+        {
+            // On failure, the checkpoint is kept for the next run, which can lock it once released
+            if ( _checkpoint != null )
+            {
+                _checkpoint.close( );
+                _checkpoint = null;
+            }
+        }
+    }
 
-        Map<String, Integer> mapResponseToColumn = writeHeader( listFormResponse );
-        Map<Integer, Form> formsByIds = new HashMap<>( );
+    /**
+     * Export the first form responses only, until the maximum number of rows or the time budget is reached. The header only has the columns of these
+     * responses, and a note is added below them when responses are left out.
+     * 
+     * @param listFormResponseItem
+     *            the first responses of the search
+     * @param nTotalCount
+     *            the total number of responses of the search
+     * @param lDeadline
+     *            the time after which no more response is loaded, in milliseconds
+     */
+    private void writePreview( List<FormResponseItem> listFormResponseItem, int nTotalCount, long lDeadline )
+    {
+        List<FormResponseItem> listSampledFormResponseItem = new ArrayList<>( );
+        List<FormResponse> listFormResponse = new ArrayList<>( );
+        int nIndex = 0;
+        while ( nIndex < listFormResponseItem.size( ) && listFormResponse.size( ) < _nPreviewMaxRows
+                && ( listFormResponse.isEmpty( ) || System.currentTimeMillis( ) < lDeadline ) )
+        {
+            FormResponseItem formResponseItem = listFormResponseItem.get( nIndex++ );
+            FormResponse formResponse = _loader.load( formResponseItem );
+            if ( formResponse != null )
+            {
+                listSampledFormResponseItem.add( formResponseItem );
+                listFormResponse.add( formResponse );
+            }
+        }
 
+        String [ ] workflowStates = findWorkflowStates( listSampledFormResponseItem );
+        Map<String, Integer> mapResponseToColumn = writeHeader( _documentWriter, listFormResponse );
         int rowIndex = 2;
+        for ( int nSampleIndex = 0; nSampleIndex < listFormResponse.size( ); nSampleIndex++ )
+        {
+            writeResponse( _documentWriter, rowIndex++, listFormResponse.get( nSampleIndex ), workflowStates [nSampleIndex], mapResponseToColumn );
+        }
+        if ( listFormResponse.size( ) < nTotalCount )
+        {
+            addRow( rowIndex );
+            setStringValue( 0, I18nService.getLocalizedString( MESSAGE_EXPORT_PREVIEW_TRUNCATED, new Object [ ] {
+                    listFormResponse.size( ), nTotalCount
+            }, I18nService.getDefaultLocale( ) ) );
+        }
+    }
+
+    /**
+     * Export all the form responses in a single sheet, with checkpoints if enabled
+     * 
+     * @param listFormResponseItem
+     *            the responses to export
+     * @param workflowStates
+     *            the workflow states of the responses
+     * @throws Exception
+     *             if an error occurs
+     */
+    private void writeSingleSheet( List<FormResponseItem> listFormResponseItem, String [ ] workflowStates ) throws Exception
+    {
+        SheetContent checkpointContent = null;
+        if ( _nCheckpointInterval > 0 )
+        {
+            String strKey = ExportCheckpoint.computeKey( getFileName( ), getCheckpointFingerprint( listFormResponseItem ) );
+            _checkpoint = ExportCheckpoint.open( Paths.get( TMP_DIR ), strKey, TimeUnit.HOURS.toMillis( _lCheckpointMaxAge ) );
+            if ( _checkpoint != null )
+            {
+                checkpointContent = new SheetContent( );
+            }
+        }
+
+        int nStartIndex = _checkpoint != null && _checkpoint.isResumed( ) ? _checkpoint.getNextResponseIndex( ) : 0;
+        List<FormResponse> listFormResponse = loadFormResponses( listFormResponseItem, nStartIndex, listFormResponseItem.size( ) );
+        if ( nStartIndex > 0 && !hasColumns( listFormResponse, _checkpoint.getMapResponseToColumn( ) ) )
+        {
+            AppLogService.info( "Export checkpoint columns do not match the responses to export, the export restarts from the beginning" );
+            _checkpoint.reset( );
+            List<FormResponse> listAllFormResponse = loadFormResponses( listFormResponseItem, 0, nStartIndex );
+            listAllFormResponse.addAll( listFormResponse );
+            listFormResponse = listAllFormResponse;
+            nStartIndex = 0;
+        }
+        boolean bResumed = nStartIndex > 0;
+        if ( bResumed )
+        {
+            _checkpoint.replay( content -> content.writeTo( _documentWriter ) );
+        }
+
+        // With checkpoints, the cells are buffered until the next checkpoint is saved; otherwise they are written straight to the document
+        SheetWriter writer = checkpointContent != null ? checkpointContent : _documentWriter;
+        Map<String, Integer> mapResponseToColumn;
+        int rowIndex;
+        if ( bResumed )
+        {
+            mapResponseToColumn = _checkpoint.getMapResponseToColumn( );
+            rowIndex = _checkpoint.getNextRowIndex( );
+        }
+        else
+        {
+            mapResponseToColumn = writeHeader( writer, listFormResponse.stream( ).filter( Objects::nonNull ).collect( Collectors.toList( ) ) );
+            rowIndex = 2;
+            if ( _checkpoint != null )
+            {
+                _checkpoint.setMapResponseToColumn( mapResponseToColumn );
+            }
+        }
+
+        for ( int nIndex = nStartIndex; nIndex < listFormResponseItem.size( ); nIndex++ )
+        {
+            FormResponse formResponse = listFormResponse.get( nIndex - nStartIndex );
+            if ( formResponse != null )
+            {
+                writeResponse( writer, rowIndex++, formResponse, workflowStates [nIndex], mapResponseToColumn );
+            }
+            if ( checkpointContent != null && ( nIndex + 1 ) % _nCheckpointInterval == 0 )
+            {
+                boolean bSaved = _checkpoint.save( checkpointContent, nIndex + 1, rowIndex );
+                checkpointContent.writeTo( _documentWriter );
+                if ( !bSaved )
+                {
+                    _checkpoint = null;
+                    checkpointContent = null;
+                    writer = _documentWriter;
+                }
+            }
+        }
+        if ( checkpointContent != null )
+        {
+            checkpointContent.writeTo( _documentWriter );
+        }
+    }
 
+    /**
+     * Load the form responses of a range of the search result
+     * 
+     * @param listFormResponseItem
+     *            the responses to export
+     * @param nFromIndex
+     *            the index of the first response, inclusive
+     * @param nToIndex
+     *            the index of the last response, exclusive
+     * @return the loaded responses, {@code null} for the responses which no longer exist
+     */
+    private List<FormResponse> loadFormResponses( List<FormResponseItem> listFormResponseItem, int nFromIndex, int nToIndex )
+    {
+        return listFormResponseItem.subList( nFromIndex, nToIndex ).stream( ).map( _loader::load ).collect( Collectors.toList( ) );
+    }
+
+    /**
+     * Build the fingerprint of the exported data, identifying a checkpoint : the id and update time of each response, in export order, then the
+     * exportable questions of each form. A response or a form modified between two runs changes the fingerprint.
+     * 
+     * @param listFormResponseItem
+     *            the responses to export
+     * @return the fingerprint
+     */
+    private List<Long> getCheckpointFingerprint( List<FormResponseItem> listFormResponseItem )
+    {
+        List<Integer> listIdFormResponse = listFormResponseItem.stream( ).map( FormResponseItem::getIdFormResponse ).collect( Collectors.toList( ) );
+        Map<Integer, Timestamp> mapUpdateDateByIdFormResponse = _dao.selectUpdateDates( listIdFormResponse );
+        List<Long> listFingerprint = new ArrayList<>( );
+        listFingerprint.add( (long) listIdFormResponse.size( ) );
+        for ( Integer nIdFormResponse : listIdFormResponse )
+        {
+            Timestamp updateDate = mapUpdateDateByIdFormResponse.get( nIdFormResponse );
+            listFingerprint.add( (long) nIdFormResponse );
+            listFingerprint.add( updateDate != null ? updateDate.getTime( ) : -1L );
+        }
+        for ( Integer nIdForm : new TreeSet<>( _dao.selectFormIdsByFormResponse( listIdFormResponse ).values( ) ) )
+        {
+            Set<Integer> setIdQuestion = new TreeSet<>( _loader.getExportableQuestions( nIdForm ).keySet( ) );
+            listFingerprint.add( (long) nIdForm );
+            listFingerprint.add( (long) setIdQuestion.size( ) );
+            setIdQuestion.forEach( nIdQuestion -> listFingerprint.add( (long) nIdQuestion ) );
+        }
+        return listFingerprint;
+    }
+
+    /**
+     * Check that the columns of a resumed export can hold all the remaining responses
+     * 
+     * @param listFormResponse
+     *            the remaining responses
+     * @param mapResponseToColumn
+     *            the saved map from question id and iteration to column index
+     * @return {@code true} if every exportable response has a column
+     */
+    private static boolean hasColumns( List<FormResponse> listFormResponse, Map<String, Integer> mapResponseToColumn )
+    {
         for ( FormResponse formResponse : listFormResponse )
         {
-            addRow( rowIndex++ );
-            Form form = formsByIds.computeIfAbsent( formResponse.getFormId( ), id -> FormHome.findByPrimaryKey( id ) );
-            setStringValue( 0, form.getTitle( ) );
-            setDateValue( 1, formResponse.getCreation( ) );
-            setDateValue( 2, formResponse.getUpdate( ) );
-            setStringValue( 3, mapWorkflowState.get( formResponse.getId( ) ) );
+            if ( formResponse == null )
+            {
+                continue;
+            }
             for ( FormResponseStep step : formResponse.getSteps( ) )
             {
                 for ( FormQuestionResponse questionResponses : step.getQuestions( ) )
                 {
-                    if ( !questionResponses.getQuestion( ).isResponseExportable( ) )
+                    if ( questionResponses.getQuestion( ).isResponseExportable( ) && !mapResponseToColumn.containsKey( getColumnId( questionResponses ) ) )
                     {
-                        continue;
+                        return false;
                     }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the id of the column of a question response : the question id and the iteration number
+     * 
+     * @param questionResponses
+     *            the question response
+     * @return the column id
+     */
+    private static String getColumnId( FormQuestionResponse questionResponses )
+    {
+        return questionResponses.getQuestion( ).getId( ) + "_" + questionResponses.getEntryResponse( ).get( 0 ).getIterationNumber( );
+    }
 
-                    IEntryDataService entryDataService = EntryServiceManager.getInstance( )
-                            .getEntryDataService( questionResponses.getQuestion( ).getEntry( ).getEntryType( ) );
-                    String responseValue = entryDataService.responseToStrings( questionResponses ).stream( ).collect( Collectors.joining( " " ) );
-                    int col = mapResponseToColumn
-                            .get( questionResponses.getQuestion( ).getId( ) + "_" + questionResponses.getEntryResponse( ).get( 0 ).getIterationNumber( ) );
-                    setStringValue( col, responseValue );
+    /**
+     * Export the form responses with one sheet per form.
+     * 
+     * The responses are grouped by form, then the sheets are built concurrently on a bounded pool, each task loading the responses of its form. The
+     * document is only written from the calling thread: each sheet is written, in form order, as soon as it is built, and its buffer is released. At most
+     * one sheet per thread is buffered at a time. Checkpoints are not supported in this mode.
+     * 
+     * @param listFormResponseItem
+     *            the responses to export
+     * @param workflowStates
+     *            the workflow states of the responses
+     * @throws Exception
+     *             if an error occurs
+     */
+    private void writeSheetPerForm( List<FormResponseItem> listFormResponseItem, String [ ] workflowStates ) throws Exception
+    {
+        Map<Integer, Integer> mapIdFormByIdFormResponse = _dao.selectFormIdsByFormResponse(
+                listFormResponseItem.stream( ).map( FormResponseItem::getIdFormResponse ).collect( Collectors.toList( ) ) );
+        Map<Integer, List<Integer>> mapIndexesByForm = new LinkedHashMap<>( );
+        for ( int nIndex = 0; nIndex < listFormResponseItem.size( ); nIndex++ )
+        {
+            Integer nIdForm = mapIdFormByIdFormResponse.get( listFormResponseItem.get( nIndex ).getIdFormResponse( ) );
+            if ( nIdForm != null )
+            {
+                mapIndexesByForm.computeIfAbsent( nIdForm, id -> new ArrayList<>( ) ).add( nIndex );
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( _nThreadCount );
+        try
+        {
+            Set<String> setSheetName = new HashSet<>( );
+            Deque<Map.Entry<Integer, Future<SheetContent>>> pendingSheets = new ArrayDeque<>( );
+            Iterator<Map.Entry<Integer, List<Integer>>> iterator = mapIndexesByForm.entrySet( ).iterator( );
+            int nSheetIndex = 0;
+            while ( iterator.hasNext( ) || !pendingSheets.isEmpty( ) )
+            {
+                while ( iterator.hasNext( ) && pendingSheets.size( ) < _nThreadCount )
+                {
+                    Map.Entry<Integer, List<Integer>> entry = iterator.next( );
+                    pendingSheets.add( new AbstractMap.SimpleEntry<>( entry.getKey( ),
+                            executor.submit( ( ) -> buildFormSheet( listFormResponseItem, workflowStates, entry.getValue( ) ) ) ) );
                 }
+                Map.Entry<Integer, Future<SheetContent>> sheet = pendingSheets.poll( );
+                addSheet( nSheetIndex++, getUniqueSheetName( getForm( sheet.getKey( ) ).getTitle( ), setSheetName ) );
+                sheet.getValue( ).get( ).writeTo( _documentWriter );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow( );
+        }
+    }
+
+    /**
+     * Build the sheet of a form
+     * 
+     * @param listFormResponseItem
+     *            the responses to export
+     * @param workflowStates
+     *            the workflow states of the responses
+     * @param listIndex
+     *            the indexes of the responses of the form
+     * @return the content of the sheet
+     */
+    private SheetContent buildFormSheet( List<FormResponseItem> listFormResponseItem, String [ ] workflowStates, List<Integer> listIndex )
+    {
+        List<FormResponse> listFormResponse = new ArrayList<>( listIndex.size( ) );
+        for ( int nIndex : listIndex )
+        {
+            listFormResponse.add( _loader.load( listFormResponseItem.get( nIndex ) ) );
+        }
+        SheetContent content = new SheetContent( );
+        Map<String, Integer> mapResponseToColumn = writeHeader( content,
+                listFormResponse.stream( ).filter( Objects::nonNull ).collect( Collectors.toList( ) ) );
+        int rowIndex = 2;
+        for ( int nPosition = 0; nPosition < listIndex.size( ); nPosition++ )
+        {
+            FormResponse formResponse = listFormResponse.get( nPosition );
+            if ( formResponse != null )
+            {
+                writeResponse( content, rowIndex++, formResponse, workflowStates [listIndex.get( nPosition )], mapResponseToColumn );
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Build a sheet name accepted by the file format and not already used in the document. Sheet names are compared without case, as spreadsheet
+     * applications do.
+     * 
+     * @param strTitle
+     *            the title of the sheet
+     * @param setSheetName
+     *            the lower case names already used, updated with the new name
+     * @return the sheet name
+     */
+    private String getUniqueSheetName( String strTitle, Set<String> setSheetName )
+    {
+        String strBaseName = toSheetName( strTitle );
+        String strName = strBaseName.length( ) > SHEET_NAME_MAX_LENGTH ? strBaseName.substring( 0, SHEET_NAME_MAX_LENGTH ) : strBaseName;
+        for ( int nSuffix = 2; setSheetName.contains( strName.toLowerCase( Locale.ROOT ) ); nSuffix++ )
+        {
+            String strSuffix = " (" + nSuffix + ")";
+            strName = strBaseName.substring( 0, Math.min( strBaseName.length( ), SHEET_NAME_MAX_LENGTH - strSuffix.length( ) ) ) + strSuffix;
+        }
+        setSheetName.add( strName.toLowerCase( Locale.ROOT ) );
+        return strName;
+    }
+
+    /**
+     * Get a form, cached for the lifetime of the export
+     * 
+     * @param nIdForm
+     *            the form id
+     * @return the form
+     */
+    private Form getForm( int nIdForm )
+    {
+        return _mapFormById.computeIfAbsent( nIdForm, id -> FormHome.findByPrimaryKey( id ) );
+    }
+
+    /**
+     * Write the row of a response
+     * 
+     * @param writer
+     *            the writer of the sheet
+     * @param rowIndex
+     *            the row index
+     * @param formResponse
+     *            the response
+     * @param strWorkflowState
+     *            the workflow state of the response
+     * @param mapResponseToColumn
+     *            the map from question id and iteration to column index
+     */
+    private void writeResponse( SheetWriter writer, int rowIndex, FormResponse formResponse, String strWorkflowState,
+            Map<String, Integer> mapResponseToColumn )
+    {
+        writer.addRow( rowIndex );
+        writer.setStringValue( 0, getForm( formResponse.getFormId( ) ).getTitle( ) );
+        writer.setDateValue( 1, formResponse.getCreation( ) );
+        writer.setDateValue( 2, formResponse.getUpdate( ) );
+        writer.setStringValue( 3, strWorkflowState );
+        for ( FormResponseStep step : formResponse.getSteps( ) )
+        {
+            for ( FormQuestionResponse questionResponses : step.getQuestions( ) )
+            {
+                if ( !questionResponses.getQuestion( ).isResponseExportable( ) )
+                {
+                    continue;
+                }
+
+                String responseValue = questionResponses instanceof IndexedQuestionResponse ? ( (IndexedQuestionResponse) questionResponses ).getValue( )
+                        : _converter.convert( questionResponses );
+                int col = mapResponseToColumn.get( getColumnId( questionResponses ) );
+                writer.setStringValue( col, responseValue );
             }
         }
-        saveDocument( file );
     }
 
     /**
@@ -243,11 +722,13 @@ public abstract class AbstractSpreadsheetFileGenerator extends AbstractFileGener
      * 
      * Columns are identified by the question id and the iteration number
      * 
+     * @param writer
+     *            the writer of the sheet
      * @param listFormResponse
      *            the responses to export
      * @return a map from question id to column index
      */
-    private Map<String, Integer> writeHeader( List<FormResponse> listFormResponse )
+    private Map<String, Integer> writeHeader( SheetWriter writer, List<FormResponse> listFormResponse )
     {
         List<String> columns = new LinkedList<>( );
         Map<String, String> columnTitles = new HashMap<>( );
@@ -314,49 +795,129 @@ public abstract class AbstractSpreadsheetFileGenerator extends AbstractFileGener
                 }
             }
         }
-        addRow( 0 );
+        writer.addRow( 0 );
         int currentIndex = stepStartingIndex;
         ListIterator<Integer> stepIdIterator = steps.listIterator( );
         while ( stepIdIterator.hasNext( ) )
         {
             Integer stepId = stepIdIterator.next( );
-            setStringValue( currentIndex + columnsByStep.get( stepId ).size( ) - 1, stepTitles.get( stepId ) );
-            mergeCells( currentIndex, 0, currentIndex + columnsByStep.get( stepId ).size( ) - 1, 0 );
+            writer.setStringValue( currentIndex + columnsByStep.get( stepId ).size( ) - 1, stepTitles.get( stepId ) );
+            writer.mergeCells( currentIndex, 0, currentIndex + columnsByStep.get( stepId ).size( ) - 1, 0 );
             currentIndex += columnsByStep.get( stepId ).size( );
         }
         Map<String, Integer> mapResponseToColumn = new HashMap<>( );
         ListIterator<String> iterator = columns.listIterator( );
-        addRow( 1 );
+        writer.addRow( 1 );
         while ( iterator.hasNext( ) )
         {
             int index = iterator.nextIndex( );
             String columnID = iterator.next( );
             mapResponseToColumn.put( columnID, index );
-            setStringValue( index, columnTitles.get( columnID ) );
+            writer.setStringValue( index, columnTitles.get( columnID ) );
         }
         return mapResponseToColumn;
     }
 
     /**
-     * Lookup the workflow state for a response
+     * Lookup the workflow states of the responses.
      * 
-     * @param formResponseItem
-     *            the response
-     * @return the workflow state, or the empty String
+     * The workflow state is at the same cell position for all the responses, so the position is located once and only searched again for the responses
+     * where it does not match.
+     * 
+     * @param listFormResponseItem
+     *            the responses
+     * @return the workflow states, in the order of the responses, or the empty String for the responses without state
      */
-    private String findWorkflowState( FormResponseItem formResponseItem )
+    private String [ ] findWorkflowStates( List<FormResponseItem> listFormResponseItem )
     {
-        for ( FormColumnCell cell : formResponseItem.getFormColumnCellValues( ) )
+        String [ ] workflowStates = new String [ listFormResponseItem.size( )];
+        int nPosition = -1;
+        for ( int nIndex = 0; nIndex < workflowStates.length; nIndex++ )
         {
-            if ( cell != null )
+            List<FormColumnCell> listCell = listFormResponseItem.get( nIndex ).getFormColumnCellValues( );
+            Object objWorkflowStateName = getCellObject( listCell, nPosition, FormMultiviewWorkflowStateNameConstants.COLUMN_WORKFLOW_STATE_NAME );
+            if ( objWorkflowStateName == null )
             {
-                Object objWorkflowStateName = cell.getFormColumnCellValueByName( FormMultiviewWorkflowStateNameConstants.COLUMN_WORKFLOW_STATE_NAME );
-                if ( objWorkflowStateName != null )
+                int nFoundPosition = findCellPosition( listCell, FormMultiviewWorkflowStateNameConstants.COLUMN_WORKFLOW_STATE_NAME );
+                if ( nFoundPosition >= 0 )
                 {
-                    return String.valueOf( objWorkflowStateName );
+                    nPosition = nFoundPosition;
+                    objWorkflowStateName = getCellObject( listCell, nPosition, FormMultiviewWorkflowStateNameConstants.COLUMN_WORKFLOW_STATE_NAME );
                 }
             }
+            workflowStates [nIndex] = objWorkflowStateName != null ? String.valueOf( objWorkflowStateName ) : "";
+        }
+        return workflowStates;
+    }
+
+    /**
+     * Get a value from the cell at a given position
+     * 
+     * @param listCell
+     *            the cells of a response
+     * @param nPosition
+     *            the position of the cell
+     * @param strName
+     *            the name of the value
+     * @return the value, or {@code null} if there is no such value at this position
+     */
+    private Object getCellObject( List<FormColumnCell> listCell, int nPosition, String strName )
+    {
+        if ( nPosition < 0 || nPosition >= listCell.size( ) || listCell.get( nPosition ) == null )
+        {
+            return null;
+        }
+        return listCell.get( nPosition ).getFormColumnCellValueByName( strName );
+    }
+
+    /**
+     * Find the position of the cell holding a value
+     * 
+     * @param listCell
+     *            the cells of a response
+     * @param strName
+     *            the name of the value
+     * @return the position of the cell, or -1 if not found
+     */
+    private int findCellPosition( List<FormColumnCell> listCell, String strName )
+    {
+        for ( int nPosition = 0; nPosition < listCell.size( ); nPosition++ )
+        {
+            if ( getCellObject( listCell, nPosition, strName ) != null )
+            {
+                return nPosition;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writer of the current sheet of the document
+     */
+    private final class DocumentWriter implements SheetWriter
+    {
+        @Override
+        public void addRow( int rowIndex )
+        {
+            AbstractSpreadsheetFileGenerator.this.addRow( rowIndex );
+        }
+
+        @Override
+        public void setStringValue( int cellIndex, String value )
+        {
+            AbstractSpreadsheetFileGenerator.this.setStringValue( cellIndex, value );
+        }
+
+        @Override
+        public void setDateValue( int cellIndex, Timestamp timestamp )
+        {
+            AbstractSpreadsheetFileGenerator.this.setDateValue( cellIndex, timestamp );
+        }
+
+        @Override
+        public void mergeCells( int colStartIndex, int rowStartIndex, int colEndIndex, int rowEndIndex )
+        {
+            AbstractSpreadsheetFileGenerator.this.mergeCells( colStartIndex, rowStartIndex, colEndIndex, rowEndIndex );
         }
-        return "";
     }
 }
@@ -38,25 +38,31 @@ import java.nio.file.Path;
 import java.sql.Timestamp;
 import java.util.List;
 
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 import fr.paris.lutece.plugins.forms.business.form.FormResponseItemSortConfig;
 import fr.paris.lutece.plugins.forms.business.form.column.IFormColumn;
 import fr.paris.lutece.plugins.forms.business.form.filter.FormFilter;
 import fr.paris.lutece.plugins.forms.business.form.panel.FormPanel;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.util.file.FileUtil;
 
 public class ExcelFileGenerator extends AbstractSpreadsheetFileGenerator
 {
 
-    private XSSFWorkbook _workbook;
-    private XSSFSheet _sheet;
-    private XSSFRow _row;
-    private XSSFCellStyle _dateStyle;
+    private static final String PROPERTY_STREAMING_ROW_WINDOW = "forms-spreadsheetexport.export.streaming.rowWindow";
+
+    private Workbook _workbook;
+    private Sheet _sheet;
+    private Row _row;
+    private CellStyle _dateStyle;
 
     /**
      * Constructor
@@ -73,11 +79,15 @@ public class ExcelFileGenerator extends AbstractSpreadsheetFileGenerator
      *            the sort configuration
      * @param fileDescription
      *            description of the file
+     * @param estimate
+     *            the preflight estimate of the export
+     * @param bPreview
+     *            {@code true} to export only the first responses, as a quick preview
      */
     protected ExcelFileGenerator( String fileName, FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter,
-            FormResponseItemSortConfig sortConfig, String fileDescription )
+            FormResponseItemSortConfig sortConfig, String fileDescription, ExportEstimate estimate, boolean bPreview )
     {
-        super( FileUtil.normalizeFileName( fileName ), formPanel, listFormColumn, listFormFilter, sortConfig, fileDescription );
+        super( FileUtil.normalizeFileName( fileName ), formPanel, listFormColumn, listFormFilter, sortConfig, fileDescription, estimate, bPreview );
     }
 
     @Override
@@ -95,7 +105,14 @@ public class ExcelFileGenerator extends AbstractSpreadsheetFileGenerator
     @Override
     protected void prepareDocument( ) throws Exception
     {
-        _workbook = new XSSFWorkbook( );
+        if ( getExportEstimate( ).getStrategy( ) == ExportStrategy.STREAMING )
+        {
+            _workbook = new SXSSFWorkbook( AppPropertiesService.getPropertyInt( PROPERTY_STREAMING_ROW_WINDOW, 100 ) );
+        }
+        else
+        {
+            _workbook = new XSSFWorkbook( );
+        }
         _sheet = _workbook.createSheet( );
         _dateStyle = _workbook.createCellStyle( );
         _dateStyle.setDataFormat( _workbook.createDataFormat( ).getFormat( "yyyy-mm-dd hh:mm" ) );
@@ -108,6 +125,14 @@ public class ExcelFileGenerator extends AbstractSpreadsheetFileGenerator
         {
             _workbook.write( out );
         }
+        finally
+        {
+            if ( _workbook instanceof SXSSFWorkbook )
+            {
+                // delete the temporary files backing the flushed rows
+                ( (SXSSFWorkbook) _workbook ).dispose( );
+            }
+        }
     }
 
     @Override
@@ -135,4 +160,24 @@ public class ExcelFileGenerator extends AbstractSpreadsheetFileGenerator
         _sheet.addMergedRegion( new CellRangeAddress( rowStartIndex, rowEndIndex, colStartIndex, colEndIndex ) );
     }
 
+    @Override
+    protected String toSheetName( String strTitle )
+    {
+        return WorkbookUtil.createSafeSheetName( strTitle );
+    }
+
+    @Override
+    protected void addSheet( int nSheetIndex, String strName )
+    {
+        if ( nSheetIndex == 0 )
+        {
+            _workbook.setSheetName( 0, strName );
+            _sheet = _workbook.getSheetAt( 0 );
+        }
+        else
+        {
+            _sheet = _workbook.createSheet( strName );
+        }
+    }
+
 }
@@ -0,0 +1,695 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ * Progress of a spreadsheet export, persisted so that a failed export can resume where it stopped.
+ * 
+ * The cells written since the previous checkpoint are saved as a part file. On resume, the parts are replayed into a new document, which avoids reloading
+ * and converting the responses already exported.
+ * 
+ * The files are written in a plain data format, in a subdirectory of the temporary directory only readable by the owner of the process. A run holds a
+ * lock on the files of its export for its whole duration: a concurrent run of the same export does not use checkpoints.
+ */
+class ExportCheckpoint
+{
+    private static final String CHECKPOINT_DIRECTORY = "forms-spreadsheetexport-checkpoints";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String PART_SUFFIX = ".part";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String PROBE_PREFIX = "probe";
+    private static final Pattern PATTERN_FILE_NAME = Pattern
+            .compile( "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})(_\\d+\\" + PART_SUFFIX + "|\\" + CHECKPOINT_SUFFIX + "|\\"
+                    + LOCK_SUFFIX + ")(\\" + TMP_SUFFIX + ")?" );
+    private static final Set<PosixFilePermission> PRIVATE_PERMISSIONS = EnumSet.of( PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.OWNER_EXECUTE );
+
+    private static final int FORMAT_MAGIC = 0x46535843;
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_COLUMN_COUNT = 1 << 20;
+
+    private final Path _directory;
+    private final String _strKey;
+    private final FileChannel _lockChannel;
+    private final FileLock _lock;
+    private final Map<String, Integer> _mapResponseToColumn = new HashMap<>( );
+    private int _nPartCount;
+    private int _nNextResponseIndex;
+    private int _nNextRowIndex;
+
+    /**
+     * Constructor
+     * 
+     * @param directory
+     *            directory of the checkpoint files
+     * @param strKey
+     *            key identifying the export
+     * @param lockChannel
+     *            the channel of the lock file
+     * @param lock
+     *            the lock held on the files of the export
+     */
+    private ExportCheckpoint( Path directory, String strKey, FileChannel lockChannel, FileLock lock )
+    {
+        _directory = directory;
+        _strKey = strKey;
+        _lockChannel = lockChannel;
+        _lock = lock;
+    }
+
+    /**
+     * Compute the key identifying an export. Exports of the same file with the same data share the same key, so a response or a form modified
+     * between two runs leads to a new key.
+     * 
+     * @param strFileName
+     *            the export file name
+     * @param listFingerprint
+     *            the values identifying the exported data, such as the response ids and update times
+     * @return the key
+     */
+    static String computeKey( String strFileName, List<Long> listFingerprint )
+    {
+        StringBuilder sbKey = new StringBuilder( strFileName );
+        for ( Long lValue : listFingerprint )
+        {
+            sbKey.append( ',' ).append( lValue );
+        }
+        return UUID.nameUUIDFromBytes( sbKey.toString( ).getBytes( StandardCharsets.UTF_8 ) ).toString( );
+    }
+
+    /**
+     * Open the checkpoint of an export and lock its files for the current run. The saved progress is loaded if it is complete, and discarded otherwise.
+     * Checkpoints older than the maximum age and not used by a run are deleted.
+     * 
+     * @param baseDirectory
+     *            the temporary directory, in which the checkpoint directory is created
+     * @param strKey
+     *            key identifying the export
+     * @param lMaxAge
+     *            the maximum age of a checkpoint, in milliseconds
+     * @return the checkpoint, or {@code null} if checkpoints cannot be used by this run
+     */
+    static ExportCheckpoint open( Path baseDirectory, String strKey, long lMaxAge )
+    {
+        if ( !PATTERN_FILE_NAME.matcher( strKey + LOCK_SUFFIX ).matches( ) )
+        {
+            throw new IllegalArgumentException( "Invalid export checkpoint key " + strKey );
+        }
+        FileChannel lockChannel = null;
+        try
+        {
+            Path directory = getPrivateDirectory( baseDirectory );
+            deleteExpired( directory, strKey, lMaxAge );
+            lockChannel = FileChannel.open( directory.resolve( strKey + LOCK_SUFFIX ), StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+            FileLock lock = tryLock( lockChannel );
+            if ( lock == null )
+            {
+                AppLogService.info( "Export checkpoint " + strKey + " is used by another run, this run does not use checkpoints" );
+                lockChannel.close( );
+                return null;
+            }
+            ExportCheckpoint checkpoint = new ExportCheckpoint( directory, strKey, lockChannel, lock );
+            checkpoint.loadProgress( );
+            return checkpoint;
+        }
+        catch( IOException | UnsupportedOperationException e )
+        {
+            AppLogService.error( "Unable to open export checkpoint " + strKey + ", this run does not use checkpoints", e );
+            closeQuietly( lockChannel );
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code true} if some progress was saved by a previous run
+     */
+    boolean isResumed( )
+    {
+        return _nPartCount > 0;
+    }
+
+    /**
+     * @return the map from question id and iteration to column index
+     */
+    Map<String, Integer> getMapResponseToColumn( )
+    {
+        return _mapResponseToColumn;
+    }
+
+    /**
+     * @param mapResponseToColumn
+     *            the map from question id and iteration to column index
+     */
+    void setMapResponseToColumn( Map<String, Integer> mapResponseToColumn )
+    {
+        _mapResponseToColumn.clear( );
+        _mapResponseToColumn.putAll( mapResponseToColumn );
+    }
+
+    /**
+     * @return the index of the first response not yet exported
+     */
+    int getNextResponseIndex( )
+    {
+        return _nNextResponseIndex;
+    }
+
+    /**
+     * @return the index of the next row to write
+     */
+    int getNextRowIndex( )
+    {
+        return _nNextRowIndex;
+    }
+
+    /**
+     * Save the cells written since the previous checkpoint, then the checkpoint itself.
+     * 
+     * Saving is best effort: if it fails, the error is logged and the checkpoint is deleted, and the export goes on without checkpoints.
+     * 
+     * @param content
+     *            the cells written since the previous checkpoint
+     * @param nNextResponseIndex
+     *            the index of the first response not yet exported
+     * @param nNextRowIndex
+     *            the index of the next row to write
+     * @return {@code true} if the checkpoint is saved, {@code false} if it is deleted
+     */
+    boolean save( SheetContent content, int nNextResponseIndex, int nNextRowIndex )
+    {
+        try
+        {
+            writeAtomically( getPartFile( _nPartCount ), content::write );
+            _nPartCount++;
+            _nNextResponseIndex = nNextResponseIndex;
+            _nNextRowIndex = nNextRowIndex;
+            writeAtomically( _directory.resolve( _strKey + CHECKPOINT_SUFFIX ), this::writeProgress );
+            return true;
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to save export checkpoint " + _strKey + ", the export goes on without checkpoints", e );
+            delete( );
+            return false;
+        }
+    }
+
+    /**
+     * Replay the saved cells, one part at a time
+     * 
+     * @param consumer
+     *            the consumer of the saved cells, which writes them to the document
+     * @throws IOException
+     *             if a part cannot be read
+     */
+    void replay( Consumer<SheetContent> consumer ) throws IOException
+    {
+        for ( int nPart = 0; nPart < _nPartCount; nPart++ )
+        {
+            consumer.accept( readPart( nPart ) );
+        }
+    }
+
+    /**
+     * Discard the saved progress, keeping the lock, so that the export restarts from the beginning
+     */
+    void reset( )
+    {
+        _mapResponseToColumn.clear( );
+        _nPartCount = 0;
+        _nNextResponseIndex = 0;
+        _nNextRowIndex = 0;
+        try
+        {
+            deleteFiles( _directory, _strKey, false );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to delete export checkpoint " + _strKey, e );
+        }
+    }
+
+    /**
+     * Delete the checkpoint and its parts, once the export is complete, and release the lock
+     */
+    void delete( )
+    {
+        try
+        {
+            deleteFiles( _directory, _strKey, true );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to delete export checkpoint " + _strKey, e );
+        }
+        close( );
+    }
+
+    /**
+     * Release the lock, keeping the checkpoint for a later run
+     */
+    void close( )
+    {
+        try
+        {
+            if ( _lock.isValid( ) )
+            {
+                _lock.release( );
+            }
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to release export checkpoint " + _strKey, e );
+        }
+        closeQuietly( _lockChannel );
+    }
+
+    /**
+     * Load the saved progress. Incomplete or invalid progress is discarded, and the export restarts from the beginning.
+     */
+    private void loadProgress( )
+    {
+        Path file = _directory.resolve( _strKey + CHECKPOINT_SUFFIX );
+        if ( !Files.exists( file, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            return;
+        }
+        try
+        {
+            try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( file, LinkOption.NOFOLLOW_LINKS ) ) ) )
+            {
+                readProgress( in );
+            }
+            // Parts are checked before being replayed, so that a document is never left half replayed
+            for ( int nPart = 0; nPart < _nPartCount; nPart++ )
+            {
+                readPart( nPart );
+            }
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to read export checkpoint " + _strKey + ", the export restarts from the beginning", e );
+            reset( );
+        }
+    }
+
+    /**
+     * Write the progress
+     * 
+     * @param out
+     *            the output
+     * @throws IOException
+     *             if the progress cannot be written
+     */
+    private void writeProgress( DataOutputStream out ) throws IOException
+    {
+        out.writeInt( FORMAT_MAGIC );
+        out.writeInt( FORMAT_VERSION );
+        out.writeUTF( _strKey );
+        out.writeInt( _nPartCount );
+        out.writeInt( _nNextResponseIndex );
+        out.writeInt( _nNextRowIndex );
+        out.writeInt( _mapResponseToColumn.size( ) );
+        for ( Map.Entry<String, Integer> entry : _mapResponseToColumn.entrySet( ) )
+        {
+            out.writeUTF( entry.getKey( ) );
+            out.writeInt( entry.getValue( ) );
+        }
+    }
+
+    /**
+     * Read the progress, checking it belongs to this export
+     * 
+     * @param in
+     *            the input
+     * @throws IOException
+     *             if the progress cannot be read or is invalid
+     */
+    private void readProgress( DataInputStream in ) throws IOException
+    {
+        if ( in.readInt( ) != FORMAT_MAGIC || in.readInt( ) != FORMAT_VERSION || !_strKey.equals( in.readUTF( ) ) )
+        {
+            throw new IOException( "Unknown export checkpoint format" );
+        }
+        _nPartCount = readNonNegativeInt( in, Integer.MAX_VALUE );
+        _nNextResponseIndex = readNonNegativeInt( in, Integer.MAX_VALUE );
+        _nNextRowIndex = readNonNegativeInt( in, Integer.MAX_VALUE );
+        int nColumnCount = readNonNegativeInt( in, MAX_COLUMN_COUNT );
+        for ( int nColumn = 0; nColumn < nColumnCount; nColumn++ )
+        {
+            _mapResponseToColumn.put( in.readUTF( ), readNonNegativeInt( in, MAX_COLUMN_COUNT ) );
+        }
+        if ( in.read( ) != -1 )
+        {
+            throw new IOException( "Unexpected data at the end of the export checkpoint" );
+        }
+    }
+
+    /**
+     * Read a part
+     * 
+     * @param nPart
+     *            the part number
+     * @return the cells of the part
+     * @throws IOException
+     *             if the part cannot be read or is invalid
+     */
+    private SheetContent readPart( int nPart ) throws IOException
+    {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( getPartFile( nPart ), LinkOption.NOFOLLOW_LINKS ) ) ) )
+        {
+            SheetContent content = SheetContent.read( in );
+            if ( in.read( ) != -1 )
+            {
+                throw new IOException( "Unexpected data at the end of the export checkpoint part " + nPart );
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Get the file of a part. Its name is derived from the key, and never read from a file.
+     * 
+     * @param nPart
+     *            the part number
+     * @return the file
+     */
+    private Path getPartFile( int nPart )
+    {
+        return _directory.resolve( _strKey + "_" + nPart + PART_SUFFIX );
+    }
+
+    /**
+     * Read a non negative integer
+     * 
+     * @param in
+     *            the input
+     * @param nMax
+     *            the maximum value
+     * @return the integer
+     * @throws IOException
+     *             if the integer cannot be read or is out of range
+     */
+    private static int readNonNegativeInt( DataInputStream in, int nMax ) throws IOException
+    {
+        int nValue = in.readInt( );
+        if ( nValue < 0 || nValue > nMax )
+        {
+            throw new IOException( "Invalid value in export checkpoint : " + nValue );
+        }
+        return nValue;
+    }
+
+    /**
+     * Get the checkpoint directory, creating it if needed. The directory must be a real directory, owned by the user running the process and only
+     * accessible by this user. The owner is compared with the owner of a file just created in the directory, since the user running the process may
+     * have no name, for instance with an arbitrary user id in a container.
+     * 
+     * @param baseDirectory
+     *            the temporary directory
+     * @return the checkpoint directory
+     * @throws IOException
+     *             if the directory cannot be created, or is not private
+     */
+    private static Path getPrivateDirectory( Path baseDirectory ) throws IOException
+    {
+        Path directory = baseDirectory.resolve( CHECKPOINT_DIRECTORY );
+        boolean bPosix = directory.getFileSystem( ).supportedFileAttributeViews( ).contains( "posix" );
+        if ( !Files.exists( directory, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            try
+            {
+                if ( bPosix )
+                {
+                    Files.createDirectory( directory, PosixFilePermissions.asFileAttribute( PRIVATE_PERMISSIONS ) );
+                }
+                else
+                {
+                    Files.createDirectory( directory );
+                }
+            }
+            catch( FileAlreadyExistsException e )
+            {
+                // Created concurrently : checked below like an existing directory
+            }
+        }
+        if ( !Files.isDirectory( directory, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            throw new IOException( directory + " is not a directory" );
+        }
+        if ( bPosix )
+        {
+            PosixFileAttributes attributes = Files.readAttributes( directory, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+            if ( !attributes.permissions( ).equals( PRIVATE_PERMISSIONS ) )
+            {
+                throw new IOException( directory + " is not private" );
+            }
+            Path probe = Files.createTempFile( directory, PROBE_PREFIX, TMP_SUFFIX );
+            try
+            {
+                if ( !attributes.owner( ).equals( Files.getOwner( probe, LinkOption.NOFOLLOW_LINKS ) ) )
+                {
+                    throw new IOException( directory + " is not owned by the user running the process" );
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists( probe );
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Delete the checkpoints not modified for longer than the maximum age, and not used by a run
+     * 
+     * @param directory
+     *            the checkpoint directory
+     * @param strCurrentKey
+     *            the key of the current export, which is never deleted here
+     * @param lMaxAge
+     *            the maximum age of a checkpoint, in milliseconds
+     * @throws IOException
+     *             if the directory cannot be read
+     */
+    private static void deleteExpired( Path directory, String strCurrentKey, long lMaxAge ) throws IOException
+    {
+        Map<String, Long> mapLastModifiedByKey = new HashMap<>( );
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory ) )
+        {
+            for ( Path file : stream )
+            {
+                Matcher matcher = PATTERN_FILE_NAME.matcher( file.getFileName( ).toString( ) );
+                if ( matcher.matches( ) && !matcher.group( 1 ).equals( strCurrentKey ) )
+                {
+                    mapLastModifiedByKey.merge( matcher.group( 1 ), Files.getLastModifiedTime( file, LinkOption.NOFOLLOW_LINKS ).toMillis( ), Math::max );
+                }
+            }
+        }
+        long lLimit = System.currentTimeMillis( ) - lMaxAge;
+        for ( Map.Entry<String, Long> entry : mapLastModifiedByKey.entrySet( ) )
+        {
+            if ( entry.getValue( ) >= lLimit )
+            {
+                continue;
+            }
+            try ( FileChannel channel = FileChannel.open( directory.resolve( entry.getKey( ) + LOCK_SUFFIX ), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE ) )
+            {
+                FileLock lock = tryLock( channel );
+                if ( lock != null )
+                {
+                    deleteFiles( directory, entry.getKey( ), true );
+                    lock.release( );
+                }
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "Unable to delete expired export checkpoint " + entry.getKey( ), e );
+            }
+        }
+    }
+
+    /**
+     * Delete the files of a checkpoint, the lock file last
+     * 
+     * @param directory
+     *            the checkpoint directory
+     * @param strKey
+     *            the key of the checkpoint
+     * @param bDeleteLock
+     *            {@code true} to delete the lock file too, {@code false} to keep it while the checkpoint is still used
+     * @throws IOException
+     *             if a file cannot be deleted
+     */
+    private static void deleteFiles( Path directory, String strKey, boolean bDeleteLock ) throws IOException
+    {
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory, strKey + "*" ) )
+        {
+            for ( Path file : stream )
+            {
+                Matcher matcher = PATTERN_FILE_NAME.matcher( file.getFileName( ).toString( ) );
+                if ( matcher.matches( ) && matcher.group( 1 ).equals( strKey ) && !LOCK_SUFFIX.equals( matcher.group( 2 ) ) )
+                {
+                    Files.deleteIfExists( file );
+                }
+            }
+        }
+        if ( bDeleteLock )
+        {
+            Files.deleteIfExists( directory.resolve( strKey + LOCK_SUFFIX ) );
+        }
+    }
+
+    /**
+     * Try to lock a lock file
+     * 
+     * @param channel
+     *            the channel of the lock file
+     * @return the lock, or {@code null} if the file is locked by another run
+     * @throws IOException
+     *             if the file cannot be locked
+     */
+    private static FileLock tryLock( FileChannel channel ) throws IOException
+    {
+        try
+        {
+            return channel.tryLock( );
+        }
+        catch( OverlappingFileLockException e )
+        {
+            // Locked by another run of this JVM
+            return null;
+        }
+    }
+
+    /**
+     * Close a channel, logging errors
+     * 
+     * @param channel
+     *            the channel, may be {@code null}
+     */
+    private static void closeQuietly( FileChannel channel )
+    {
+        if ( channel == null )
+        {
+            return;
+        }
+        try
+        {
+            channel.close( );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to close export checkpoint lock", e );
+        }
+    }
+
+    /**
+     * Write a file, replacing it only once fully written
+     * 
+     * @param file
+     *            the file
+     * @param writer
+     *            the writer of the content
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    private static void writeAtomically( Path file, DataWriter writer ) throws IOException
+    {
+        Path tmpFile = file.resolveSibling( file.getFileName( ) + TMP_SUFFIX );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmpFile ) ) ) )
+        {
+            writer.write( out );
+        }
+        try
+        {
+            Files.move( tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( AtomicMoveNotSupportedException e )
+        {
+            Files.move( tmpFile, file, StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * Writer of the content of a file
+     */
+    @FunctionalInterface
+    private interface DataWriter
+    {
+        /**
+         * Write the content
+         * 
+         * @param out
+         *            the output
+         * @throws IOException
+         *             if the content cannot be written
+         */
+        void write( DataOutputStream out ) throws IOException;
+    }
+}
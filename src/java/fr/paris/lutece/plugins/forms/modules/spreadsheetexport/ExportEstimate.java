@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+/**
+ * Estimated size of a spreadsheet export, computed before the export starts
+ */
+public class ExportEstimate
+{
+    private final int _nRowCount;
+    private final int _nColumnCount;
+    private final ExportStrategy _strategy;
+
+    /**
+     * Constructor
+     * 
+     * @param nRowCount
+     *            the number of rows to export
+     * @param nColumnCount
+     *            the estimated number of columns
+     * @param strategy
+     *            the selected execution strategy
+     */
+    ExportEstimate( int nRowCount, int nColumnCount, ExportStrategy strategy )
+    {
+        _nRowCount = nRowCount;
+        _nColumnCount = nColumnCount;
+        _strategy = strategy;
+    }
+
+    /**
+     * @return the number of rows to export
+     */
+    public int getRowCount( )
+    {
+        return _nRowCount;
+    }
+
+    /**
+     * @return the estimated number of columns
+     */
+    public int getColumnCount( )
+    {
+        return _nColumnCount;
+    }
+
+    /**
+     * @return the estimated number of cells
+     */
+    public long getCellCount( )
+    {
+        return (long) _nRowCount * _nColumnCount;
+    }
+
+    /**
+     * @return the selected execution strategy
+     */
+    public ExportStrategy getStrategy( )
+    {
+        return _strategy;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.plugins.forms.business.form.FormResponseItem;
+import fr.paris.lutece.plugins.forms.business.form.FormResponseItemSortConfig;
+import fr.paris.lutece.plugins.forms.business.form.column.IFormColumn;
+import fr.paris.lutece.plugins.forms.business.form.filter.FormFilter;
+import fr.paris.lutece.plugins.forms.business.form.panel.FormPanel;
+import fr.paris.lutece.plugins.forms.service.MultiviewFormService;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Estimates the size of an export before it starts and selects its execution strategy
+ */
+public final class ExportPreflight
+{
+    private static final String MESSAGE_HEAVY_EXPORT = "module.forms.spreadsheetexport.export.heavy.warning";
+
+    private static final String PROPERTY_PREFLIGHT_SAMPLE_SIZE = "forms-spreadsheetexport.export.preflight.sampleSize";
+    private static final String PROPERTY_STREAMING_CELL_THRESHOLD = "forms-spreadsheetexport.export.streaming.cellThreshold";
+    private static final String PROPERTY_WARNING_CELL_THRESHOLD = "forms-spreadsheetexport.export.warning.cellThreshold";
+    private static final String PROPERTY_PREVIEW_MAX_ROWS = "forms-spreadsheetexport.export.preview.maxRows";
+
+    private static final int DEFAULT_SAMPLE_SIZE = 50;
+    private static final long DEFAULT_STREAMING_CELL_THRESHOLD = 500000L;
+    private static final long DEFAULT_WARNING_CELL_THRESHOLD = 5000000L;
+    private static final int DEFAULT_PREVIEW_MAX_ROWS = 20;
+    private static final int FIXED_COLUMN_COUNT = 4;
+
+    /**
+     * Private constructor
+     */
+    private ExportPreflight( )
+    {
+    }
+
+    /**
+     * Estimate the size of an export and select its strategy
+     * 
+     * Only the first page of the multiview search is read, on a private copy of the form panel : the row count is the total count of this search, and
+     * the column count is the number of exportable questions of the forms of this first page, which are found with a single query.
+     * 
+     * @param formPanel
+     *            the form panel
+     * @param listFormColumn
+     *            the form columns list
+     * @param listFormFilter
+     *            the form filter
+     * @param sortConfig
+     *            the sort configuration
+     * @param bStreamingSupported
+     *            {@code true} if the file format supports the streaming strategy
+     * @return the estimate
+     */
+    public static ExportEstimate estimate( FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter,
+            FormResponseItemSortConfig sortConfig, boolean bStreamingSupported )
+    {
+        int nSampleSize = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_PREFLIGHT_SAMPLE_SIZE, DEFAULT_SAMPLE_SIZE ) );
+        FormPanel page = searchPage( formPanel, listFormColumn, listFormFilter, sortConfig, nSampleSize );
+        return estimateFirstPage( page, page.getTotalFormResponseItemCount( ), bStreamingSupported );
+    }
+
+    /**
+     * Estimate a preview export, which is always kept in memory.
+     * 
+     * The page read is the preview itself : the row count is capped at the preview size, and the columns are the ones of the forms of the previewed
+     * responses.
+     * 
+     * @param formPanel
+     *            the form panel
+     * @param listFormColumn
+     *            the form columns list
+     * @param listFormFilter
+     *            the form filter
+     * @param sortConfig
+     *            the sort configuration
+     * @return the estimate
+     */
+    public static ExportEstimate estimatePreview( FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter,
+            FormResponseItemSortConfig sortConfig )
+    {
+        int nPreviewMaxRows = getPreviewMaxRows( );
+        FormPanel page = searchPage( formPanel, listFormColumn, listFormFilter, sortConfig, nPreviewMaxRows );
+        return estimateFirstPage( page, Math.min( page.getTotalFormResponseItemCount( ), nPreviewMaxRows ), false );
+    }
+
+    /**
+     * Search the first page of responses of an export.
+     * 
+     * The search runs on a private copy of the form panel : the given panel belongs to the multiview of the user, and its displayed page must not change.
+     * 
+     * @param formPanel
+     *            the form panel
+     * @param listFormColumn
+     *            the form columns list
+     * @param listFormFilter
+     *            the form filter
+     * @param sortConfig
+     *            the sort configuration
+     * @param nPageSize
+     *            the size of the page
+     * @return the private copy of the form panel, holding the page and the total count of the search
+     */
+    static FormPanel searchPage( FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter, FormResponseItemSortConfig sortConfig,
+            int nPageSize )
+    {
+        FormPanel page = new FormPanel( formPanel.getFormPanelConfiguration( ) );
+        page.setListFormPanelInitializer( formPanel.getListFormPanelInitializer( ) );
+        MultiviewFormService.getInstance( ).populateFormColumns( page, listFormColumn, listFormFilter, 0, nPageSize, sortConfig );
+        return page;
+    }
+
+    /**
+     * Get the maximum number of responses of a preview export
+     * 
+     * @return the maximum number of responses
+     */
+    static int getPreviewMaxRows( )
+    {
+        return Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_PREVIEW_MAX_ROWS, DEFAULT_PREVIEW_MAX_ROWS ) );
+    }
+
+    /**
+     * Estimate an export from the first page of its search
+     * 
+     * @param page
+     *            the private form panel holding the first page
+     * @param nRowCount
+     *            the number of rows to export
+     * @param bStreamingSupported
+     *            {@code true} if the file format supports the streaming strategy
+     * @return the estimate
+     */
+    private static ExportEstimate estimateFirstPage( FormPanel page, int nRowCount, boolean bStreamingSupported )
+    {
+        List<Integer> listIdFormResponse = page.getFormResponseItemList( ).stream( ).map( FormResponseItem::getIdFormResponse )
+                .collect( Collectors.toList( ) );
+        Set<Integer> setIdForm = new FormResponseExportDAO( ).selectFormIds( listIdFormResponse );
+        FormResponseExportLoader loader = new FormResponseExportLoader( );
+        int nColumnCount = FIXED_COLUMN_COUNT;
+        for ( int nIdForm : setIdForm )
+        {
+            nColumnCount += loader.getExportableQuestions( nIdForm ).size( );
+        }
+
+        ExportStrategy strategy = ExportStrategy.IN_MEMORY;
+        long lStreamingCellThreshold = AppPropertiesService.getPropertyLong( PROPERTY_STREAMING_CELL_THRESHOLD, DEFAULT_STREAMING_CELL_THRESHOLD );
+        if ( bStreamingSupported && (long) nRowCount * nColumnCount > lStreamingCellThreshold )
+        {
+            strategy = ExportStrategy.STREAMING;
+        }
+        return new ExportEstimate( nRowCount, nColumnCount, strategy );
+    }
+
+    /**
+     * Tells if an estimated export is heavy enough to warn the user before starting it
+     * 
+     * @param estimate
+     *            the estimate
+     * @return {@code true} if the user should be warned
+     */
+    public static boolean isHeavy( ExportEstimate estimate )
+    {
+        return estimate.getCellCount( ) > AppPropertiesService.getPropertyLong( PROPERTY_WARNING_CELL_THRESHOLD, DEFAULT_WARNING_CELL_THRESHOLD );
+    }
+
+    /**
+     * Get the description of the generated file, with a warning when the export is heavy
+     * 
+     * @param strDescription
+     *            the description of the export format
+     * @param estimate
+     *            the estimate
+     * @return the description of the generated file
+     */
+    public static String getFileDescription( String strDescription, ExportEstimate estimate )
+    {
+        if ( !isHeavy( estimate ) )
+        {
+            return strDescription;
+        }
+        return strDescription + " - " + I18nService.getLocalizedString( MESSAGE_HEAVY_EXPORT, new Object [ ] {
+                estimate.getRowCount( ), estimate.getColumnCount( )
+        }, I18nService.getDefaultLocale( ) );
+    }
+}
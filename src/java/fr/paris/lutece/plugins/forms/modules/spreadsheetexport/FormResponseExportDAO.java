@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fr.paris.lutece.plugins.forms.business.FormQuestionResponse;
+import fr.paris.lutece.plugins.forms.business.Question;
+import fr.paris.lutece.plugins.forms.service.FormsPlugin;
+import fr.paris.lutece.plugins.genericattributes.business.Field;
+import fr.paris.lutece.plugins.genericattributes.business.Response;
+import fr.paris.lutece.portal.business.file.File;
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginService;
+import fr.paris.lutece.util.sql.DAOUtil;
+
+/**
+ * Read-only queries on the forms tables dedicated to the export
+ */
+final class FormResponseExportDAO
+{
+    // Files are joined on core_file for their metadata only : the physical file (the content) is never read
+    private static final String SQL_QUERY_SELECT_QUESTION_RESPONSES = "SELECT fqr.id_question_response, fqr.id_question,"
+            + " r.id_response, r.response_value, r.iteration_number, r.id_field, f.id_file, f.title, f.mime_type, f.file_size"
+            + " FROM forms_question_response fqr"
+            + " INNER JOIN forms_question_entry_response fqer ON fqer.id_question_response = fqr.id_question_response"
+            + " INNER JOIN genatt_response r ON r.id_response = fqer.id_entry_response"
+            + " LEFT JOIN core_file f ON f.id_file = r.id_file"
+            + " WHERE fqr.id_form_response = ? AND ( ";
+    private static final String SQL_FILTER_QUESTIONS = "fqr.id_question IN ( ";
+    private static final String SQL_FILTER_INDEXED_QUESTIONS = "( r.iteration_number > 0 AND fqr.id_question IN ( ";
+    private static final String SQL_FILTER_INDEXED_QUESTIONS_END = " ) )";
+    private static final String SQL_OR = " OR ";
+    private static final String SQL_QUERY_SELECT_QUESTION_RESPONSES_END = " ) ORDER BY fqr.id_question_response, r.id_response";
+    private static final String SQL_QUERY_SELECT_FORM_IDS = "SELECT DISTINCT id_form FROM forms_response WHERE id_response IN ( ";
+    private static final String SQL_QUERY_SELECT_FORM_IDS_BY_FORM_RESPONSE = "SELECT id_response, id_form FROM forms_response WHERE id_response IN ( ";
+    private static final String SQL_QUERY_SELECT_UPDATE_DATES = "SELECT id_response, update_date FROM forms_response WHERE id_response IN ( ";
+    private static final String SQL_QUERY_END = " )";
+
+    // Size of the IN clauses, to stay below the limits of the databases
+    private static final int IN_CLAUSE_MAX_SIZE = 500;
+
+    private final Plugin _plugin = PluginService.getPlugin( FormsPlugin.PLUGIN_NAME );
+
+    /**
+     * Load the question responses of a form response, restricted to some questions.
+     * 
+     * The returned question responses only hold the id of their question, and the responses only hold the id of their field.
+     * 
+     * @param nIdFormResponse
+     *            the form response id
+     * @param listIdQuestion
+     *            the ids of the questions to load
+     * @param listIdIndexedQuestion
+     *            the ids of the questions whose first iteration is read from the search index : only their other iterations are loaded
+     * @return the question responses
+     */
+    List<FormQuestionResponse> selectQuestionResponses( int nIdFormResponse, Collection<Integer> listIdQuestion, Collection<Integer> listIdIndexedQuestion )
+    {
+        List<FormQuestionResponse> listQuestionResponse = new ArrayList<>( );
+        if ( listIdQuestion.isEmpty( ) && listIdIndexedQuestion.isEmpty( ) )
+        {
+            return listQuestionResponse;
+        }
+        StringBuilder sbSql = new StringBuilder( SQL_QUERY_SELECT_QUESTION_RESPONSES );
+        if ( !listIdQuestion.isEmpty( ) )
+        {
+            sbSql.append( SQL_FILTER_QUESTIONS ).append( getPlaceholders( listIdQuestion.size( ) ) ).append( SQL_QUERY_END );
+        }
+        if ( !listIdIndexedQuestion.isEmpty( ) )
+        {
+            if ( !listIdQuestion.isEmpty( ) )
+            {
+                sbSql.append( SQL_OR );
+            }
+            sbSql.append( SQL_FILTER_INDEXED_QUESTIONS ).append( getPlaceholders( listIdIndexedQuestion.size( ) ) ).append( SQL_FILTER_INDEXED_QUESTIONS_END );
+        }
+        sbSql.append( SQL_QUERY_SELECT_QUESTION_RESPONSES_END );
+        try ( DAOUtil daoUtil = new DAOUtil( sbSql.toString( ), _plugin ) )
+        {
+            int nIndex = 1;
+            daoUtil.setInt( nIndex++, nIdFormResponse );
+            for ( Integer nIdQuestion : listIdQuestion )
+            {
+                daoUtil.setInt( nIndex++, nIdQuestion );
+            }
+            for ( Integer nIdQuestion : listIdIndexedQuestion )
+            {
+                daoUtil.setInt( nIndex++, nIdQuestion );
+            }
+            daoUtil.executeQuery( );
+
+            FormQuestionResponse questionResponse = null;
+            int nCurrentIdQuestionResponse = -1;
+            while ( daoUtil.next( ) )
+            {
+                nIndex = 1;
+                int nIdQuestionResponse = daoUtil.getInt( nIndex++ );
+                if ( questionResponse == null || nIdQuestionResponse != nCurrentIdQuestionResponse )
+                {
+                    nCurrentIdQuestionResponse = nIdQuestionResponse;
+                    questionResponse = new FormQuestionResponse( );
+                    Question question = new Question( );
+                    question.setId( daoUtil.getInt( nIndex ) );
+                    questionResponse.setQuestion( question );
+                    questionResponse.setEntryResponse( new ArrayList<>( ) );
+                    listQuestionResponse.add( questionResponse );
+                }
+                nIndex++;
+
+                Response response = new Response( );
+                response.setIdResponse( daoUtil.getInt( nIndex++ ) );
+                response.setResponseValue( daoUtil.getString( nIndex++ ) );
+                response.setIterationNumber( daoUtil.getInt( nIndex++ ) );
+                int nIdField = daoUtil.getInt( nIndex++ );
+                if ( nIdField > 0 )
+                {
+                    Field field = new Field( );
+                    field.setIdField( nIdField );
+                    response.setField( field );
+                }
+                int nIdFile = daoUtil.getInt( nIndex++ );
+                if ( nIdFile > 0 )
+                {
+                    File file = new File( );
+                    file.setIdFile( nIdFile );
+                    file.setTitle( daoUtil.getString( nIndex++ ) );
+                    file.setMimeType( daoUtil.getString( nIndex++ ) );
+                    file.setSize( daoUtil.getInt( nIndex ) );
+                    response.setFile( file );
+                }
+                questionResponse.getEntryResponse( ).add( response );
+            }
+        }
+        return listQuestionResponse;
+    }
+
+    /**
+     * Find the forms of some form responses
+     * 
+     * @param listIdFormResponse
+     *            the form response ids
+     * @return the ids of their forms
+     */
+    Set<Integer> selectFormIds( Collection<Integer> listIdFormResponse )
+    {
+        Set<Integer> setIdForm = new HashSet<>( );
+        if ( listIdFormResponse.isEmpty( ) )
+        {
+            return setIdForm;
+        }
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_FORM_IDS + getPlaceholders( listIdFormResponse.size( ) ) + SQL_QUERY_END, _plugin ) )
+        {
+            int nIndex = 1;
+            for ( Integer nIdFormResponse : listIdFormResponse )
+            {
+                daoUtil.setInt( nIndex++, nIdFormResponse );
+            }
+            daoUtil.executeQuery( );
+            while ( daoUtil.next( ) )
+            {
+                setIdForm.add( daoUtil.getInt( 1 ) );
+            }
+        }
+        return setIdForm;
+    }
+
+    /**
+     * Find the form of each form response
+     * 
+     * @param listIdFormResponse
+     *            the form response ids
+     * @return the map from form response id to form id
+     */
+    Map<Integer, Integer> selectFormIdsByFormResponse( List<Integer> listIdFormResponse )
+    {
+        Map<Integer, Integer> mapIdFormByIdFormResponse = new HashMap<>( );
+        for ( int nStart = 0; nStart < listIdFormResponse.size( ); nStart += IN_CLAUSE_MAX_SIZE )
+        {
+            List<Integer> listChunk = listIdFormResponse.subList( nStart, Math.min( listIdFormResponse.size( ), nStart + IN_CLAUSE_MAX_SIZE ) );
+            try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_FORM_IDS_BY_FORM_RESPONSE + getPlaceholders( listChunk.size( ) ) + SQL_QUERY_END, _plugin ) )
+            {
+                int nIndex = 1;
+                for ( Integer nIdFormResponse : listChunk )
+                {
+                    daoUtil.setInt( nIndex++, nIdFormResponse );
+                }
+                daoUtil.executeQuery( );
+                while ( daoUtil.next( ) )
+                {
+                    mapIdFormByIdFormResponse.put( daoUtil.getInt( 1 ), daoUtil.getInt( 2 ) );
+                }
+            }
+        }
+        return mapIdFormByIdFormResponse;
+    }
+
+    /**
+     * Find the last update date of each form response
+     * 
+     * @param listIdFormResponse
+     *            the form response ids
+     * @return the map from form response id to update date
+     */
+    Map<Integer, Timestamp> selectUpdateDates( List<Integer> listIdFormResponse )
+    {
+        Map<Integer, Timestamp> mapUpdateDateByIdFormResponse = new HashMap<>( );
+        for ( int nStart = 0; nStart < listIdFormResponse.size( ); nStart += IN_CLAUSE_MAX_SIZE )
+        {
+            List<Integer> listChunk = listIdFormResponse.subList( nStart, Math.min( listIdFormResponse.size( ), nStart + IN_CLAUSE_MAX_SIZE ) );
+            try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_UPDATE_DATES + getPlaceholders( listChunk.size( ) ) + SQL_QUERY_END, _plugin ) )
+            {
+                int nIndex = 1;
+                for ( Integer nIdFormResponse : listChunk )
+                {
+                    daoUtil.setInt( nIndex++, nIdFormResponse );
+                }
+                daoUtil.executeQuery( );
+                while ( daoUtil.next( ) )
+                {
+                    mapUpdateDateByIdFormResponse.put( daoUtil.getInt( 1 ), daoUtil.getTimestamp( 2 ) );
+                }
+            }
+        }
+        return mapUpdateDateByIdFormResponse;
+    }
+
+    /**
+     * Build the placeholders of an IN clause
+     * 
+     * @param nCount
+     *            the number of values
+     * @return the placeholders
+     */
+    private static String getPlaceholders( int nCount )
+    {
+        StringBuilder sbPlaceholders = new StringBuilder( );
+        for ( int i = 0; i < nCount; i++ )
+        {
+            sbPlaceholders.append( i == 0 ? "?" : ",?" );
+        }
+        return sbPlaceholders.toString( );
+    }
+}
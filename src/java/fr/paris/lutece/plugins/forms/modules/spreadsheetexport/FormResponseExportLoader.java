@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.paris.lutece.plugins.forms.business.FormQuestionResponse;
+import fr.paris.lutece.plugins.forms.business.FormResponse;
+import fr.paris.lutece.plugins.forms.business.FormResponseHome;
+import fr.paris.lutece.plugins.forms.business.FormResponseStep;
+import fr.paris.lutece.plugins.forms.business.FormResponseStepHome;
+import fr.paris.lutece.plugins.forms.business.Question;
+import fr.paris.lutece.plugins.forms.business.QuestionHome;
+import fr.paris.lutece.plugins.forms.business.form.FormResponseItem;
+import fr.paris.lutece.plugins.forms.business.form.column.FormColumnCell;
+import fr.paris.lutece.plugins.genericattributes.business.Field;
+import fr.paris.lutece.plugins.genericattributes.business.FieldHome;
+import fr.paris.lutece.plugins.genericattributes.business.Response;
+
+/**
+ * Loads form responses for the export.
+ * 
+ * The responses to the exportable questions are read with a single query per form response, and only the metadata of the files is read, never their
+ * content. A loader can be shared by the threads of an export.
+ * 
+ * The values of the questions shown in the multiview columns can be read from the cells of the search result instead : the database is then only
+ * queried for the other questions, and for the repeated iterations of the indexed questions, as the index only holds the first one.
+ */
+public class FormResponseExportLoader
+{
+    private final FormResponseExportDAO _dao = new FormResponseExportDAO( );
+    private final Map<String, String> _mapValueNameByEntryCode;
+    private final Map<Integer, Map<Integer, Question>> _mapExportableQuestionsByForm = new ConcurrentHashMap<>( );
+    private final Map<Integer, Map<Integer, String>> _mapIndexedValueNamesByForm = new ConcurrentHashMap<>( );
+    private final Map<Integer, Field> _mapFieldById = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor for a loader reading all the values from the database
+     */
+    public FormResponseExportLoader( )
+    {
+        this( Collections.emptyMap( ) );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param mapValueNameByEntryCode
+     *            the name of the cell value holding the indexed value of an entry, by entry code
+     */
+    public FormResponseExportLoader( Map<String, String> mapValueNameByEntryCode )
+    {
+        _mapValueNameByEntryCode = mapValueNameByEntryCode;
+    }
+
+    /**
+     * Load a form response, restricted to its exportable questions. Steps without any exportable response are left out.
+     * 
+     * @param formResponseItem
+     *            the form response, as returned by the multiview search
+     * @return the form response, or {@code null} if it does not exist
+     */
+    public FormResponse load( FormResponseItem formResponseItem )
+    {
+        int nIdFormResponse = formResponseItem.getIdFormResponse( );
+        FormResponse formResponse = FormResponseHome.loadById( nIdFormResponse );
+        if ( formResponse == null )
+        {
+            return null;
+        }
+        Map<Integer, Question> mapExportableQuestion = getExportableQuestions( formResponse.getFormId( ) );
+        Map<Integer, List<FormQuestionResponse>> mapQuestionResponsesByStep = new LinkedHashMap<>( );
+        List<Integer> listIdQuestion = new ArrayList<>( );
+        List<Integer> listIdIndexedQuestion = new ArrayList<>( );
+        Map<Integer, String> mapIndexedValueName = getIndexedValueNames( formResponse.getFormId( ) );
+        for ( Question question : mapExportableQuestion.values( ) )
+        {
+            String strValue = findCellValue( formResponseItem.getFormColumnCellValues( ), mapIndexedValueName.get( question.getId( ) ) );
+            if ( strValue == null )
+            {
+                listIdQuestion.add( question.getId( ) );
+            }
+            else
+            {
+                listIdIndexedQuestion.add( question.getId( ) );
+                mapQuestionResponsesByStep.computeIfAbsent( question.getIdStep( ), id -> new ArrayList<>( ) )
+                        .add( createIndexedResponse( question, strValue ) );
+            }
+        }
+        if ( !mapExportableQuestion.isEmpty( ) )
+        {
+            for ( FormQuestionResponse questionResponse : _dao.selectQuestionResponses( nIdFormResponse, listIdQuestion, listIdIndexedQuestion ) )
+            {
+                Question question = mapExportableQuestion.get( questionResponse.getQuestion( ).getId( ) );
+                questionResponse.setQuestion( question );
+                for ( Response response : questionResponse.getEntryResponse( ) )
+                {
+                    response.setEntry( question.getEntry( ) );
+                    Field field = response.getField( ) != null ? getField( response.getField( ).getIdField( ) ) : null;
+                    if ( field != null )
+                    {
+                        response.setField( field );
+                    }
+                }
+                mapQuestionResponsesByStep.computeIfAbsent( question.getIdStep( ), id -> new ArrayList<>( ) ).add( questionResponse );
+            }
+        }
+
+        List<FormResponseStep> listStep = new ArrayList<>( );
+        for ( FormResponseStep step : FormResponseStepHome.findStepsByFormResponse( nIdFormResponse ) )
+        {
+            List<FormQuestionResponse> listQuestionResponse = mapQuestionResponsesByStep.get( step.getStep( ).getId( ) );
+            if ( listQuestionResponse != null )
+            {
+                step.setQuestions( listQuestionResponse );
+                listStep.add( step );
+            }
+        }
+        formResponse.setSteps( listStep );
+        if ( !listIdIndexedQuestion.isEmpty( ) )
+        {
+            // Keep the questions in form order, with the indexed ones among the others
+            Map<Integer, Integer> mapQuestionRank = new HashMap<>( );
+            for ( Integer nIdQuestion : mapExportableQuestion.keySet( ) )
+            {
+                mapQuestionRank.put( nIdQuestion, mapQuestionRank.size( ) );
+            }
+            Comparator<FormQuestionResponse> comparator = Comparator.comparingInt( qr -> mapQuestionRank.get( qr.getQuestion( ).getId( ) ) );
+            listStep.forEach( step -> step.getQuestions( ).sort( comparator ) );
+        }
+        return formResponse;
+    }
+
+    /**
+     * Get the exportable questions of a form, by id. The result is cached for the lifetime of the loader.
+     * 
+     * @param nIdForm
+     *            the form id
+     * @return the exportable questions, by id
+     */
+    public Map<Integer, Question> getExportableQuestions( int nIdForm )
+    {
+        return _mapExportableQuestionsByForm.computeIfAbsent( nIdForm, id -> {
+            Map<Integer, Question> mapQuestion = new LinkedHashMap<>( );
+            for ( Question question : QuestionHome.getListQuestionByIdForm( id ) )
+            {
+                if ( question.isResponseExportable( ) )
+                {
+                    mapQuestion.put( question.getId( ), question );
+                }
+            }
+            return mapQuestion;
+        } );
+    }
+
+    /**
+     * Get the names of the cell values holding the indexed values of the exportable questions of a form, by question id. A question is left out when
+     * another question of the form is shown in the same column, as the column value is then ambiguous. The result is cached for the lifetime of the
+     * loader.
+     * 
+     * @param nIdForm
+     *            the form id
+     * @return the names of the cell values, by question id
+     */
+    private Map<Integer, String> getIndexedValueNames( int nIdForm )
+    {
+        if ( _mapValueNameByEntryCode.isEmpty( ) )
+        {
+            return Collections.emptyMap( );
+        }
+        return _mapIndexedValueNamesByForm.computeIfAbsent( nIdForm, id -> {
+            Map<Integer, String> mapValueName = new HashMap<>( );
+            Map<String, Integer> mapValueNameCount = new HashMap<>( );
+            for ( Question question : getExportableQuestions( id ).values( ) )
+            {
+                String strValueName = question.getEntry( ) != null ? _mapValueNameByEntryCode.get( question.getEntry( ).getCode( ) ) : null;
+                if ( strValueName != null )
+                {
+                    mapValueName.put( question.getId( ), strValueName );
+                    mapValueNameCount.merge( strValueName, 1, Integer::sum );
+                }
+            }
+            mapValueName.values( ).removeIf( strValueName -> mapValueNameCount.get( strValueName ) > 1 );
+            return mapValueName;
+        } );
+    }
+
+    /**
+     * Find a value in the cells of a search result
+     * 
+     * @param listCell
+     *            the cells
+     * @param strValueName
+     *            the name of the value, may be {@code null}
+     * @return the value, or {@code null} if the cells do not hold it
+     */
+    private static String findCellValue( List<FormColumnCell> listCell, String strValueName )
+    {
+        if ( strValueName == null || listCell == null )
+        {
+            return null;
+        }
+        for ( FormColumnCell cell : listCell )
+        {
+            Object objValue = cell != null ? cell.getFormColumnCellValueByName( strValueName ) : null;
+            if ( objValue != null && !String.valueOf( objValue ).isEmpty( ) )
+            {
+                return String.valueOf( objValue );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create the response of a question from its indexed value, as its first iteration
+     * 
+     * @param question
+     *            the question
+     * @param strValue
+     *            the indexed value
+     * @return the question response
+     */
+    private static FormQuestionResponse createIndexedResponse( Question question, String strValue )
+    {
+        IndexedQuestionResponse questionResponse = new IndexedQuestionResponse( strValue );
+        questionResponse.setQuestion( question );
+        Response response = new Response( );
+        response.setEntry( question.getEntry( ) );
+        response.setResponseValue( strValue );
+        response.setIterationNumber( 0 );
+        List<Response> listResponse = new ArrayList<>( );
+        listResponse.add( response );
+        questionResponse.setEntryResponse( listResponse );
+        return questionResponse;
+    }
+
+    /**
+     * Get a field. The result is cached for the lifetime of the loader.
+     * 
+     * @param nIdField
+     *            the field id
+     * @return the field
+     */
+    private Field getField( int nIdField )
+    {
+        return _mapFieldById.computeIfAbsent( nIdField, FieldHome::findByPrimaryKey );
+    }
+}
@@ -54,6 +54,7 @@ public class OpenDocumentExport implements IFormatExport
     private final String _strFormatExportName;
     private final String _strFormatExportDisplayName;
     private final String _strFormatExportDescription;
+    private final boolean _bPreview;
 
     /**
      * Constructor of the OpenDocumentExport
@@ -66,10 +67,28 @@ public class OpenDocumentExport implements IFormatExport
      *            The export format description
      */
     public OpenDocumentExport( String strFormatExportName, String strFormatExportDisplayName, String strFormatExportDescription )
+    {
+        this( strFormatExportName, strFormatExportDisplayName, strFormatExportDescription, false );
+    }
+
+    /**
+     * Constructor of the OpenDocumentExport
+     * 
+     * @param strFormatExportName
+     *            The export format bean name
+     * @param strFormatExportDisplayName
+     *            The export format display name
+     * @param strFormatExportDescription
+     *            The export format description
+     * @param bPreview
+     *            {@code true} to export only the first responses, as a quick preview
+     */
+    public OpenDocumentExport( String strFormatExportName, String strFormatExportDisplayName, String strFormatExportDescription, boolean bPreview )
     {
         _strFormatExportName = strFormatExportName;
         _strFormatExportDisplayName = I18nService.getLocalizedString( strFormatExportDisplayName, I18nService.getDefaultLocale( ) );
         _strFormatExportDescription = I18nService.getLocalizedString( strFormatExportDescription, I18nService.getDefaultLocale( ) );
+        _bPreview = bPreview;
     }
 
     @Override
@@ -94,7 +113,10 @@ public class OpenDocumentExport implements IFormatExport
     public IFileGenerator createFileGenerator( String formName, FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter,
             FormResponseItemSortConfig sortConfig )
     {
-        return new OpenDocumentFileGenerator( formName, formPanel, listFormColumn, listFormFilter, sortConfig, _strFormatExportDescription );
+        ExportEstimate estimate = _bPreview ? ExportPreflight.estimatePreview( formPanel, listFormColumn, listFormFilter, sortConfig )
+                : ExportPreflight.estimate( formPanel, listFormColumn, listFormFilter, sortConfig, false );
+        return new OpenDocumentFileGenerator( formName, formPanel, listFormColumn, listFormFilter, sortConfig,
+                ExportPreflight.getFileDescription( _strFormatExportDescription, estimate ), estimate, _bPreview );
     }
 
 }
@@ -55,6 +55,9 @@ import fr.paris.lutece.util.file.FileUtil;
 public class OpenDocumentFileGenerator extends AbstractSpreadsheetFileGenerator
 {
 
+    private static final String SHEET_NAME_FORBIDDEN_CHARACTERS = "[\\[\\]*?:/\\\\]";
+    private static final String SHEET_NAME_DEFAULT = "Sheet";
+
     private OdfTable _table;
     private OdfDocument _document;
     private OdfTableRow _row;
@@ -74,11 +77,15 @@ public class OpenDocumentFileGenerator extends AbstractSpreadsheetFileGenerator
      *            the sort configuration
      * @param fileDescription
      *            description of the file
+     * @param estimate
+     *            the preflight estimate of the export
+     * @param bPreview
+     *            {@code true} to export only the first responses, as a quick preview
      */
     protected OpenDocumentFileGenerator( String fileName, FormPanel formPanel, List<IFormColumn> listFormColumn, List<FormFilter> listFormFilter,
-            FormResponseItemSortConfig sortConfig, String fileDescription )
+            FormResponseItemSortConfig sortConfig, String fileDescription, ExportEstimate estimate, boolean bPreview )
     {
-        super( FileUtil.normalizeFileName( fileName ), formPanel, listFormColumn, listFormFilter, sortConfig, fileDescription );
+        super( FileUtil.normalizeFileName( fileName ), formPanel, listFormColumn, listFormFilter, sortConfig, fileDescription, estimate, bPreview );
     }
 
     @Override
@@ -137,4 +144,22 @@ public class OpenDocumentFileGenerator extends AbstractSpreadsheetFileGenerator
         _table.getCellRangeByPosition( colStartIndex, rowStartIndex, colEndIndex, rowEndIndex ).merge( );
     }
 
+    @Override
+    protected String toSheetName( String strTitle )
+    {
+        // Spreadsheet applications reject these characters in a table name, and a leading or trailing quote
+        String strName = strTitle == null ? "" : strTitle.replaceAll( SHEET_NAME_FORBIDDEN_CHARACTERS, " " ).replaceAll( "^'+|'+$", "" ).trim( );
+        return strName.isEmpty( ) ? SHEET_NAME_DEFAULT : strName;
+    }
+
+    @Override
+    protected void addSheet( int nSheetIndex, String strName )
+    {
+        if ( nSheetIndex > 0 )
+        {
+            _table = OdfTable.newTable( _document );
+        }
+        _table.setTableName( strName );
+    }
+
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.plugins.forms.business.FormQuestionResponse;
+import fr.paris.lutece.plugins.forms.service.EntryServiceManager;
+import fr.paris.lutece.plugins.forms.web.entrytype.IEntryDataService;
+import fr.paris.lutece.plugins.genericattributes.business.Entry;
+import fr.paris.lutece.plugins.genericattributes.business.Response;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Converts responses to cell values, memoizing the conversion for the entry types whose conversion only depends on the entry and the response values.
+ * 
+ * A cache lives for a single export, and can be shared by the threads of this export.
+ */
+public class ResponseValueConverter
+{
+    private static final String PROPERTY_MEMOIZED_ENTRY_TYPES = "forms-spreadsheetexport.export.memoizedEntryTypes";
+    private static final String DEFAULT_MEMOIZED_ENTRY_TYPES = "forms.entryTypeSelect,forms.entryTypeRadioButton,forms.entryTypeCheckBox";
+
+    private final Set<String> _setMemoizedEntryType = new HashSet<>( Arrays
+            .asList( AppPropertiesService.getProperty( PROPERTY_MEMOIZED_ENTRY_TYPES, DEFAULT_MEMOIZED_ENTRY_TYPES ).split( "\\s*,\\s*" ) ) );
+    private final Map<List<Object>, String> _mapValue = new ConcurrentHashMap<>( );
+    private final LongAdder _hitCount = new LongAdder( );
+    private final LongAdder _missCount = new LongAdder( );
+
+    /**
+     * Convert a question response to the value of its cell
+     * 
+     * @param questionResponse
+     *            the question response
+     * @return the cell value
+     */
+    public String convert( FormQuestionResponse questionResponse )
+    {
+        Entry entry = questionResponse.getQuestion( ).getEntry( );
+        if ( !_setMemoizedEntryType.contains( entry.getEntryType( ).getBeanName( ) ) )
+        {
+            return doConvert( questionResponse );
+        }
+        List<Object> key = getKey( entry, questionResponse );
+        String strValue = _mapValue.get( key );
+        if ( strValue != null )
+        {
+            _hitCount.increment( );
+            return strValue;
+        }
+        _missCount.increment( );
+        strValue = doConvert( questionResponse );
+        _mapValue.put( key, strValue );
+        return strValue;
+    }
+
+    /**
+     * @return the number of conversions served from the cache
+     */
+    public long getHitCount( )
+    {
+        return _hitCount.sum( );
+    }
+
+    /**
+     * @return the number of memoizable conversions that had to be computed
+     */
+    public long getMissCount( )
+    {
+        return _missCount.sum( );
+    }
+
+    /**
+     * @return the ratio of memoizable conversions served from the cache, between 0 and 1
+     */
+    public double getHitRate( )
+    {
+        long lHitCount = _hitCount.sum( );
+        long lTotal = lHitCount + _missCount.sum( );
+        return lTotal == 0 ? 0 : (double) lHitCount / lTotal;
+    }
+
+    /**
+     * Convert a question response without the cache
+     * 
+     * @param questionResponse
+     *            the question response
+     * @return the cell value
+     */
+    private String doConvert( FormQuestionResponse questionResponse )
+    {
+        IEntryDataService entryDataService = EntryServiceManager.getInstance( )
+                .getEntryDataService( questionResponse.getQuestion( ).getEntry( ).getEntryType( ) );
+        return entryDataService.responseToStrings( questionResponse ).stream( ).collect( Collectors.joining( " " ) );
+    }
+
+    /**
+     * Build the cache key of a question response, from the entry and the selected fields and values.
+     * 
+     * The key is a list rather than a joined string, so that values containing a separator cannot make two different responses share a key.
+     * 
+     * @param entry
+     *            the entry
+     * @param questionResponse
+     *            the question response
+     * @return the key
+     */
+    private List<Object> getKey( Entry entry, FormQuestionResponse questionResponse )
+    {
+        List<Object> key = new ArrayList<>( 1 + 2 * questionResponse.getEntryResponse( ).size( ) );
+        key.add( entry.getIdEntry( ) );
+        for ( Response response : questionResponse.getEntryResponse( ) )
+        {
+            key.add( response.getField( ) != null ? response.getField( ).getIdField( ) : null );
+            key.add( response.getResponseValue( ) );
+        }
+        return key;
+    }
+}
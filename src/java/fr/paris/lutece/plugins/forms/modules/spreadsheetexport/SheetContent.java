@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cells of a sheet, buffered before being written to the document.
+ * 
+ * Buffering lets the content of a sheet be built outside of the document, which is not thread safe, and lets the written cells be kept for the checkpoint.
+ */
+class SheetContent implements SheetWriter
+{
+    // Cell values are bounded when read back, as Excel limits a cell to 32767 characters
+    private static final int MAX_VALUE_LENGTH = 4 * 32767;
+    private static final int MAX_INDEX = 1 << 20;
+
+    private final List<Operation> _listOperation = new ArrayList<>( );
+
+    @Override
+    public void addRow( int rowIndex )
+    {
+        _listOperation.add( new Operation( Operation.Type.ADD_ROW, new int [ ] {
+                rowIndex
+        }, null, null ) );
+    }
+
+    @Override
+    public void setStringValue( int cellIndex, String value )
+    {
+        _listOperation.add( new Operation( Operation.Type.STRING_VALUE, new int [ ] {
+                cellIndex
+        }, value, null ) );
+    }
+
+    @Override
+    public void setDateValue( int cellIndex, Timestamp timestamp )
+    {
+        _listOperation.add( new Operation( Operation.Type.DATE_VALUE, new int [ ] {
+                cellIndex
+        }, null, timestamp ) );
+    }
+
+    @Override
+    public void mergeCells( int colStartIndex, int rowStartIndex, int colEndIndex, int rowEndIndex )
+    {
+        _listOperation.add( new Operation( Operation.Type.MERGE_CELLS, new int [ ] {
+                colStartIndex, rowStartIndex, colEndIndex, rowEndIndex
+        }, null, null ) );
+    }
+
+    /**
+     * Append the cells buffered in another content
+     * 
+     * @param content
+     *            the other content
+     */
+    void addAll( SheetContent content )
+    {
+        _listOperation.addAll( content._listOperation );
+    }
+
+    /**
+     * Write the buffered cells, then empty the buffer
+     * 
+     * @param writer
+     *            the writer of the current sheet of the document
+     */
+    void writeTo( SheetWriter writer )
+    {
+        for ( Operation operation : _listOperation )
+        {
+            operation.apply( writer );
+        }
+        _listOperation.clear( );
+    }
+
+    /**
+     * Write the buffered cells in a plain data format
+     * 
+     * @param out
+     *            the output
+     * @throws IOException
+     *             if the cells cannot be written
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        out.writeInt( _listOperation.size( ) );
+        for ( Operation operation : _listOperation )
+        {
+            operation.write( out );
+        }
+    }
+
+    /**
+     * Read cells written by {@link #write(DataOutputStream)}
+     * 
+     * @param in
+     *            the input
+     * @return the cells
+     * @throws IOException
+     *             if the cells cannot be read or are invalid
+     */
+    static SheetContent read( DataInputStream in ) throws IOException
+    {
+        SheetContent content = new SheetContent( );
+        int nCount = in.readInt( );
+        if ( nCount < 0 )
+        {
+            throw new IOException( "Invalid number of cells : " + nCount );
+        }
+        for ( int nIndex = 0; nIndex < nCount; nIndex++ )
+        {
+            content._listOperation.add( Operation.read( in ) );
+        }
+        return content;
+    }
+
+    /**
+     * A write operation on the document
+     */
+    private static final class Operation
+    {
+        private enum Type
+        {
+            ADD_ROW( 1 ),
+            STRING_VALUE( 1 ),
+            DATE_VALUE( 1 ),
+            MERGE_CELLS( 4 );
+
+            private final int _nIndexCount;
+
+            Type( int nIndexCount )
+            {
+                _nIndexCount = nIndexCount;
+            }
+        }
+
+        private final Type _type;
+        private final int [ ] _indexes;
+        private final String _strValue;
+        private final Timestamp _timestamp;
+
+        private Operation( Type type, int [ ] indexes, String strValue, Timestamp timestamp )
+        {
+            _type = type;
+            _indexes = indexes;
+            _strValue = strValue;
+            _timestamp = timestamp;
+        }
+
+        /**
+         * Apply the operation to a document
+         * 
+         * @param writer
+         *            the writer of the current sheet of the document
+         */
+        private void apply( SheetWriter writer )
+        {
+            switch( _type )
+            {
+                case ADD_ROW:
+                    writer.addRow( _indexes [0] );
+                    break;
+                case STRING_VALUE:
+                    writer.setStringValue( _indexes [0], _strValue );
+                    break;
+                case DATE_VALUE:
+                    writer.setDateValue( _indexes [0], _timestamp );
+                    break;
+                case MERGE_CELLS:
+                    writer.mergeCells( _indexes [0], _indexes [1], _indexes [2], _indexes [3] );
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Write the operation
+         * 
+         * @param out
+         *            the output
+         * @throws IOException
+         *             if the operation cannot be written
+         */
+        private void write( DataOutputStream out ) throws IOException
+        {
+            out.writeByte( _type.ordinal( ) );
+            for ( int nIndex : _indexes )
+            {
+                out.writeInt( nIndex );
+            }
+            if ( _type == Type.STRING_VALUE )
+            {
+                byte [ ] value = _strValue == null ? null : _strValue.getBytes( StandardCharsets.UTF_8 );
+                out.writeInt( value == null ? -1 : value.length );
+                if ( value != null )
+                {
+                    out.write( value );
+                }
+            }
+            else if ( _type == Type.DATE_VALUE )
+            {
+                out.writeBoolean( _timestamp != null );
+                if ( _timestamp != null )
+                {
+                    out.writeLong( _timestamp.getTime( ) );
+                    out.writeInt( _timestamp.getNanos( ) );
+                }
+            }
+        }
+
+        /**
+         * Read an operation
+         * 
+         * @param in
+         *            the input
+         * @return the operation
+         * @throws IOException
+         *             if the operation cannot be read or is invalid
+         */
+        private static Operation read( DataInputStream in ) throws IOException
+        {
+            int nType = in.readUnsignedByte( );
+            if ( nType >= Type.values( ).length )
+            {
+                throw new IOException( "Invalid cell operation : " + nType );
+            }
+            Type type = Type.values( ) [nType];
+            int [ ] indexes = new int [ type._nIndexCount];
+            for ( int nIndex = 0; nIndex < indexes.length; nIndex++ )
+            {
+                indexes [nIndex] = in.readInt( );
+                if ( indexes [nIndex] < 0 || indexes [nIndex] > MAX_INDEX )
+                {
+                    throw new IOException( "Invalid cell index : " + indexes [nIndex] );
+                }
+            }
+            String strValue = null;
+            Timestamp timestamp = null;
+            if ( type == Type.STRING_VALUE )
+            {
+                int nLength = in.readInt( );
+                if ( nLength < -1 || nLength > MAX_VALUE_LENGTH )
+                {
+                    throw new IOException( "Invalid cell value length : " + nLength );
+                }
+                if ( nLength >= 0 )
+                {
+                    byte [ ] value = new byte [ nLength];
+                    in.readFully( value );
+                    strValue = new String( value, StandardCharsets.UTF_8 );
+                }
+            }
+            else if ( type == Type.DATE_VALUE && in.readBoolean( ) )
+            {
+                timestamp = new Timestamp( in.readLong( ) );
+                int nNanos = in.readInt( );
+                if ( nNanos < 0 || nNanos > 999999999 )
+                {
+                    throw new IOException( "Invalid cell date : " + nNanos );
+                }
+                timestamp.setNanos( nNanos );
+            }
+            return new Operation( type, indexes, strValue, timestamp );
+        }
+    }
+}
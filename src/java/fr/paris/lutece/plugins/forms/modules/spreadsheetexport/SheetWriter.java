@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import java.sql.Timestamp;
+
+/**
+ * Target of the cells of a sheet : the document itself, or a buffer of cells
+ */
+interface SheetWriter
+{
+    /**
+     * Add a row. This row becomes the current row.
+     * 
+     * @param rowIndex
+     *            the row index
+     */
+    void addRow( int rowIndex );
+
+    /**
+     * Set the value of a cell in the current row as a string
+     * 
+     * @param cellIndex
+     *            index of the cell in the current row
+     * @param value
+     *            the value
+     */
+    void setStringValue( int cellIndex, String value );
+
+    /**
+     * Set the value of a cell in the current row as a date
+     * 
+     * @param cellIndex
+     *            index of the cell in the current row
+     * @param timestamp
+     *            the value
+     */
+    void setDateValue( int cellIndex, Timestamp timestamp );
+
+    /**
+     * Merge cells
+     * 
+     * @param colStartIndex
+     *            start column index
+     * @param rowStartIndex
+     *            start row index
+     * @param colEndIndex
+     *            end column index
+     * @param rowEndIndex
+     *            end row index
+     */
+    void mergeCells( int colStartIndex, int rowStartIndex, int colEndIndex, int rowEndIndex );
+}
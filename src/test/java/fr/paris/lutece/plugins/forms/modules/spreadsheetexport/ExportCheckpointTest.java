@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2002-2022, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.forms.modules.spreadsheetexport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the export checkpoints
+ */
+public class ExportCheckpointTest
+{
+    private static final long MAX_AGE = TimeUnit.HOURS.toMillis( 48 );
+    private static final String CHECKPOINT_DIRECTORY = "forms-spreadsheetexport-checkpoints";
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder( );
+
+    /**
+     * A saved checkpoint is loaded by the next run, and its parts are replayed in order
+     * 
+     * @throws IOException
+     *             if the test fails
+     */
+    @Test
+    public void testSaveLoadReplay( ) throws IOException
+    {
+        Path baseDirectory = _folder.getRoot( ).toPath( );
+        String strKey = ExportCheckpoint.computeKey( "export", Arrays.asList( 1L, 2L, 3L ) );
+        Map<String, Integer> mapResponseToColumn = new HashMap<>( );
+        mapResponseToColumn.put( "12_0", 4 );
+        mapResponseToColumn.put( "12_1", 5 );
+
+        ExportCheckpoint checkpoint = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertNotNull( checkpoint );
+        assertFalse( checkpoint.isResumed( ) );
+        checkpoint.setMapResponseToColumn( mapResponseToColumn );
+        assertTrue( checkpoint.save( createContent( 0 ), 1, 3 ) );
+        assertTrue( checkpoint.save( createContent( 3 ), 2, 4 ) );
+        checkpoint.close( );
+
+        ExportCheckpoint resumed = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertNotNull( resumed );
+        assertTrue( resumed.isResumed( ) );
+        assertEquals( 2, resumed.getNextResponseIndex( ) );
+        assertEquals( 4, resumed.getNextRowIndex( ) );
+        assertEquals( mapResponseToColumn, resumed.getMapResponseToColumn( ) );
+
+        SheetContent replayed = new SheetContent( );
+        resumed.replay( replayed::addAll );
+        SheetContent expected = createContent( 0 );
+        expected.addAll( createContent( 3 ) );
+        assertArrayEquals( toBytes( expected ), toBytes( replayed ) );
+
+        resumed.delete( );
+        assertEquals( 0, countFiles( baseDirectory.resolve( CHECKPOINT_DIRECTORY ) ) );
+    }
+
+    /**
+     * A corrupted checkpoint is discarded, and the export restarts from the beginning
+     * 
+     * @throws IOException
+     *             if the test fails
+     */
+    @Test
+    public void testCorruptedCheckpoint( ) throws IOException
+    {
+        Path baseDirectory = _folder.getRoot( ).toPath( );
+        String strKey = ExportCheckpoint.computeKey( "export", Arrays.asList( 1L, 2L ) );
+        ExportCheckpoint checkpoint = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertTrue( checkpoint.save( createContent( 0 ), 1, 3 ) );
+        checkpoint.close( );
+
+        Path part = baseDirectory.resolve( CHECKPOINT_DIRECTORY ).resolve( strKey + "_0.part" );
+        byte [ ] content = Files.readAllBytes( part );
+        Files.write( part, Arrays.copyOf( content, content.length - 1 ) );
+
+        ExportCheckpoint resumed = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertNotNull( resumed );
+        assertFalse( resumed.isResumed( ) );
+        assertFalse( Files.exists( part ) );
+        resumed.delete( );
+    }
+
+    /**
+     * A reset checkpoint restarts from the beginning, and stays locked for the current run
+     * 
+     * @throws IOException
+     *             if the test fails
+     */
+    @Test
+    public void testReset( ) throws IOException
+    {
+        Path baseDirectory = _folder.getRoot( ).toPath( );
+        String strKey = ExportCheckpoint.computeKey( "export", Arrays.asList( 1L, 2L ) );
+        ExportCheckpoint checkpoint = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertTrue( checkpoint.save( createContent( 0 ), 1, 3 ) );
+        checkpoint.close( );
+
+        ExportCheckpoint resumed = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertTrue( resumed.isResumed( ) );
+        resumed.reset( );
+        assertFalse( resumed.isResumed( ) );
+        assertEquals( 0, resumed.getNextResponseIndex( ) );
+        assertTrue( resumed.getMapResponseToColumn( ).isEmpty( ) );
+        assertNull( ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE ) );
+        resumed.close( );
+
+        ExportCheckpoint next = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertFalse( next.isResumed( ) );
+        next.delete( );
+    }
+
+    /**
+     * A checkpoint used by a run is not available to a concurrent run
+     * 
+     * @throws IOException
+     *             if the test fails
+     */
+    @Test
+    public void testConcurrentRun( ) throws IOException
+    {
+        Path baseDirectory = _folder.getRoot( ).toPath( );
+        String strKey = ExportCheckpoint.computeKey( "export", Collections.singletonList( 1L ) );
+        ExportCheckpoint checkpoint = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertNotNull( checkpoint );
+        assertNull( ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE ) );
+        checkpoint.close( );
+
+        ExportCheckpoint next = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertNotNull( next );
+        next.delete( );
+    }
+
+    /**
+     * Expired checkpoints are deleted when a checkpoint is opened
+     * 
+     * @throws IOException
+     *             if the test fails
+     */
+    @Test
+    public void testExpiredCheckpoint( ) throws IOException
+    {
+        Path baseDirectory = _folder.getRoot( ).toPath( );
+        String strExpiredKey = ExportCheckpoint.computeKey( "expired", Collections.singletonList( 1L ) );
+        ExportCheckpoint expired = ExportCheckpoint.open( baseDirectory, strExpiredKey, MAX_AGE );
+        assertTrue( expired.save( createContent( 0 ), 1, 3 ) );
+        expired.close( );
+        Path directory = baseDirectory.resolve( CHECKPOINT_DIRECTORY );
+        FileTime oldTime = FileTime.fromMillis( System.currentTimeMillis( ) - 2 * MAX_AGE );
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory ) )
+        {
+            for ( Path file : stream )
+            {
+                Files.setLastModifiedTime( file, oldTime );
+            }
+        }
+
+        String strKey = ExportCheckpoint.computeKey( "current", Collections.singletonList( 1L ) );
+        ExportCheckpoint checkpoint = ExportCheckpoint.open( baseDirectory, strKey, MAX_AGE );
+        assertNotNull( checkpoint );
+        assertEquals( 1, countFiles( directory ) );
+        checkpoint.delete( );
+    }
+
+    /**
+     * Create the cells of a response row
+     * 
+     * @param nRowIndex
+     *            the row index
+     * @return the cells
+     */
+    private static SheetContent createContent( int nRowIndex )
+    {
+        SheetContent content = new SheetContent( );
+        content.addRow( nRowIndex );
+        content.setStringValue( 0, "Form \u00e9t\u00e9" );
+        content.setStringValue( 1, null );
+        content.setDateValue( 2, new Timestamp( 1700000000123L ) );
+        content.setDateValue( 3, null );
+        content.mergeCells( 4, nRowIndex, 5, nRowIndex );
+        return content;
+    }
+
+    /**
+     * Serialize cells
+     * 
+     * @param content
+     *            the cells
+     * @return the bytes
+     * @throws IOException
+     *             if the cells cannot be written
+     */
+    private static byte [ ] toBytes( SheetContent content ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+        try ( DataOutputStream out = new DataOutputStream( bytes ) )
+        {
+            content.write( out );
+        }
+        return bytes.toByteArray( );
+    }
+
+    /**
+     * Count the files of a directory
+     * 
+     * @param directory
+     *            the directory
+     * @return the number of files
+     * @throws IOException
+     *             if the directory cannot be read
+     */
+    private static long countFiles( Path directory ) throws IOException
+    {
+        try ( Stream<Path> stream = Files.list( directory ) )
+        {
+            return stream.count( );
+        }
+    }
+}